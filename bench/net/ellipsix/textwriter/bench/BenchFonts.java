@@ -0,0 +1,79 @@
+/* BenchFonts.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter.bench;
+
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Fonts shared by the benchmarks.
+ *
+ * <p>A "system" font is looked up by family name from the graphics system,
+ * while a "loaded" font is created from a TrueType file, the same as the
+ * fonts added with {@link net.ellipsix.textwriter.TextwriterDaemon#FONT_ADD_MODE}.
+ * The file is given by the <tt>textwriter.bench.fontFile</tt> property, and
+ * the system family by <tt>textwriter.bench.fontName</tt>.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class BenchFonts {
+    static final String SYSTEM = "system";
+    static final String LOADED = "loaded";
+
+    static final String FONT_NAME = System.getProperty("textwriter.bench.fontName", "DejaVu Sans");
+    static final File FONT_FILE = new File(System.getProperty("textwriter.bench.fontFile",
+            "/usr/share/fonts/truetype/dejavu/DejaVuSans.ttf"));
+
+    private BenchFonts() {}
+
+    /**
+     * Returns a plain font of the given size.
+     * @param source {@link #SYSTEM} or {@link #LOADED}
+     */
+    static Font get(String source, float size) throws FontFormatException, IOException {
+        if (LOADED.equals(source)) {
+            return Font.createFont(Font.TRUETYPE_FONT, FONT_FILE).deriveFont(Font.PLAIN, size);
+        }
+        return new Font(FONT_NAME, Font.PLAIN, 1).deriveFont(Font.PLAIN, size);
+    }
+
+    /**
+     * Returns {@code length} characters of mixed-case text with spaces, in
+     * the Latin-1 range that the code maps cover.
+     */
+    static String text(int length) {
+        String sample = "The quick brown fox jumps over the lazy d\u00f3g, \u00e1 \u00e9 \u00ed \u00fa ";
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(sample);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,86 @@
+/* CodeMapBenchmark.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter.bench;
+
+import java.util.concurrent.TimeUnit;
+import net.ellipsix.textwriter.engine.AccentedVowelCodeMap;
+import net.ellipsix.textwriter.engine.CharacterCodeMap;
+import net.ellipsix.textwriter.engine.SeanchloCharCodeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CharacterCodeMap#getCharacter(int)} for the Unicode maps,
+ * looking up every LCI each map provides.
+ *
+ * @author David Zaslavsky
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodeMapBenchmark {
+    private CharacterCodeMap accented;
+    private CharacterCodeMap seanchlo;
+    private final int[] accentedLCIs = AccentedVowelCodeMap.unicodeGlyphCoords.clone();
+    private final int[] seanchloLCIs = SeanchloCharCodeMap.unicodeGlyphCoords.clone();
+
+    @Setup
+    public void setup() {
+        // in a Unicode font, each LCI maps to the glyph with the same code
+        accented = new AccentedVowelCodeMap("Unicode", AccentedVowelCodeMap.unicodeGlyphCoords);
+        seanchlo = new SeanchloCharCodeMap("Unicode", SeanchloCharCodeMap.unicodeGlyphCoords);
+    }
+
+    @Benchmark
+    public int accentedVowel() {
+        int sum = 0;
+        for (int lci : accentedLCIs) {
+            sum += accented.getCharacter(lci);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int seanchlo() {
+        int sum = 0;
+        for (int lci : seanchloLCIs) {
+            sum += seanchlo.getCharacter(lci);
+        }
+        return sum;
+    }
+}
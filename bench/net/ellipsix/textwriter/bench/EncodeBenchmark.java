@@ -0,0 +1,105 @@
+/* EncodeBenchmark.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter.bench;
+
+import java.awt.Color;
+import java.awt.FontFormatException;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import net.ellipsix.textwriter.PngEncoder;
+import net.ellipsix.textwriter.RenderRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures PNG encoding with {@link ImageIO#write} and with
+ * {@link PngEncoder} of images like the ones the daemon sends: a short label,
+ * a line of body text and a long headline at display size.
+ *
+ * @author David Zaslavsky
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EncodeBenchmark {
+    @Param({"label", "line", "headline"})
+    public String shape;
+
+    private BufferedImage image;
+    // reused so that the benchmark measures encoding rather than buffer growth
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+
+    @Setup
+    public void setup() throws FontFormatException, IOException {
+        ImageIO.setUseCache(false);
+        int length;
+        int size;
+        if ("label".equals(shape)) {
+            length = 8;
+            size = 14;
+        }
+        else if ("line".equals(shape)) {
+            length = 64;
+            size = 16;
+        }
+        else {
+            length = 40;
+            size = 72;
+        }
+        image = RenderRequest.renderText(BenchFonts.text(length), BenchFonts.get(BenchFonts.SYSTEM, size),
+                new Color(255, 255, 255, 0), Color.BLACK);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        ImageIO.write(image, "PNG", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int pngEncoder() throws IOException {
+        out.reset();
+        PngEncoder.write(image, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,98 @@
+/* FontLookupBenchmark.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter.bench;
+
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.ellipsix.textwriter.FontCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link FontCollection#getFont(String, int, float)} on its own and
+ * while another thread keeps reloading a font file with
+ * {@link FontCollection#loadFonts(java.io.File)}.
+ *
+ * <p>Lookups read the collection's current snapshot without locking, so the
+ * time per lookup should stay flat as readers are added, up to the number of
+ * processors. To see how it scales, run {@link #lookup()} once for each
+ * thread count from 1 to 64:</p>
+ * <pre>
+ * for t in 1 2 4 8 16 32 64; do
+ *     ant bench -Dbench.args="FontLookupBenchmark.lookup -t $t"
+ * done
+ * </pre>
+ * <p>Change the number of readers in the {@code contended} group with
+ * <tt>-tg N,1</tt>.</p>
+ *
+ * @author David Zaslavsky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FontLookupBenchmark {
+    private FontCollection fc;
+
+    @Setup
+    public void setup() {
+        fc = FontCollection.getInstance();
+    }
+
+    @Benchmark
+    public Font lookup() {
+        return fc.getFont(BenchFonts.FONT_NAME, Font.BOLD, 24);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Font contendedLookup() {
+        return fc.getFont(BenchFonts.FONT_NAME, Font.BOLD, 24);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedLoad() throws FontFormatException, IOException {
+        fc.loadFonts(BenchFonts.FONT_FILE);
+    }
+}
@@ -0,0 +1,90 @@
+/* ParseBenchmark.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import net.ellipsix.textwriter.RenderRequest;
+import net.ellipsix.textwriter.TextwriterDaemon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RenderRequest#parse(BufferedReader)} on a canned request,
+ * laid out as the frontend sends it after the mode byte. The reader is set
+ * up the same way as in the daemon, so the cost includes decoding the bytes
+ * and looking up the font.
+ *
+ * @author David Zaslavsky
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ParseBenchmark {
+    @Param({"1", "4"})
+    public int lines;
+
+    private byte[] request;
+
+    @Setup
+    public void setup() throws IOException {
+        Charset cs = TextwriterDaemon.TRANSFER_CHARSET;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.write((BenchFonts.FONT_NAME + "\n").getBytes(cs));
+        buf.write(new byte[] {24, 0, 1});
+        buf.write("ffffff00\n000000ff\n".getBytes(cs));
+        buf.write(lines);
+        for (int i = 0; i < lines; i++) {
+            buf.write((BenchFonts.text(40) + "\n").getBytes(cs));
+        }
+        request = buf.toByteArray();
+    }
+
+    @Benchmark
+    public RenderRequest parse() throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request),
+                TextwriterDaemon.TRANSFER_CHARSET));
+        return RenderRequest.parse(r);
+    }
+}
@@ -0,0 +1,94 @@
+/* RenderBenchmark.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter.bench;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.ellipsix.textwriter.RenderRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RenderRequest#renderText(String, Font, Color, Color)}, and
+ * the same text wrapped into a paragraph, over a matrix of text lengths, font
+ * sizes and font sources.
+ *
+ * @author David Zaslavsky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+    @Param({"8", "64", "512"})
+    public int length;
+
+    @Param({"12", "36", "96"})
+    public int size;
+
+    @Param({BenchFonts.SYSTEM, BenchFonts.LOADED})
+    public String source;
+
+    private String text;
+    private Font font;
+    private final Color background = new Color(255, 255, 255, 0);
+    private final Color foreground = Color.BLACK;
+
+    @Setup
+    public void setup() throws FontFormatException, IOException {
+        text = BenchFonts.text(length);
+        font = BenchFonts.get(source, size);
+    }
+
+    @Benchmark
+    public BufferedImage renderText() throws IOException {
+        return RenderRequest.renderText(text, font, background, foreground);
+    }
+
+    @Benchmark
+    public BufferedImage renderParagraph() throws IOException {
+        RenderRequest req = new RenderRequest(text, font, background, foreground);
+        // about 40 characters to a line, left aligned and single spaced
+        req.setParagraphLayout(20 * size, 0, 100);
+        return req.getImage();
+    }
+}
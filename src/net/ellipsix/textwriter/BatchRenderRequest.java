@@ -0,0 +1,341 @@
+/* BatchRenderRequest.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * A request to render many single-line strings in the same font and colors,
+ * as received from the Textwriter frontend.
+ *
+ * <p>The font and colors are parsed and looked up once for the whole batch,
+ * and the strings are rendered in parallel on a shared {@link ForkJoinPool}.
+ * Each string is measured before it is rendered, and the batch fails as soon
+ * as its images would add up to more than {@link RenderRequest#MAX_PIXELS}
+ * pixels. The response is either one PNG image per string or a single sprite
+ * sheet holding all of them, stacked vertically.</p>
+ *
+ * <p>The request layout is the same as a render request up to the colors,
+ * followed by a character that is 1 for a sprite sheet or 0 for separate
+ * images, a line holding the number of strings in decimal, at most
+ * {@value #MAX_COUNT}, and then one line per string.</p>
+ *
+ * @author David Zaslavsky
+ */
+public class BatchRenderRequest {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    // Batches, parallel PNG encoding and font loading share one pool, so
+    // together they use at most one thread per processor
+    static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /** The most strings a batch may hold */
+    static final int MAX_COUNT = 1 << 16;
+    // The most digits a valid count may be written with
+    static final int MAX_COUNT_DIGITS = String.valueOf(MAX_COUNT).length();
+
+    private String[] texts;
+    private Font font;
+    private Color background;
+    private Color foreground;
+    private boolean sprite;
+
+    public static BatchRenderRequest parse(BufferedReader r) throws IOException {
+        Font font = RenderRequest.parseFont(r);
+        String background = r.readLine();
+        String foreground = r.readLine();
+        boolean sprite = r.read() != 0;
+        String count = r.readLine();
+        int n = parseCount(count);
+        if (n < 0) {
+            throw new IOException("Invalid batch size " + count);
+        }
+        logger.finest("Reading " + n + " strings");
+        String[] texts = new String[n];
+        for (int i = 0; i < n; i++) {
+            texts[i] = r.readLine();
+        }
+        return new BatchRenderRequest(texts, font, RenderRequest.parseColor(background), RenderRequest.parseColor(foreground), sprite);
+    }
+
+    /**
+     * Reads the number of strings in a batch, which must be written in plain
+     * decimal digits, no more than {@link #MAX_COUNT_DIGITS} of them, and be
+     * no more than {@link #MAX_COUNT}. The request
+     * framer uses this too, so that it agrees with the parser on where a
+     * batch ends.
+     * @return the number of strings, or -1 if the count is not valid
+     */
+    static int parseCount(String count) {
+        if (count == null || count.isEmpty() || count.length() > MAX_COUNT_DIGITS) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 0; i < count.length(); i++) {
+            char c = count.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+            if (n > MAX_COUNT) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    public BatchRenderRequest(String[] texts, Font font, Color background, Color foreground, boolean sprite) {
+        this.texts = texts;
+        this.font = font;
+        this.background = background;
+        this.foreground = foreground;
+        this.sprite = sprite;
+    }
+
+    /**
+     * Renders the batch and writes the response.
+     *
+     * <p>The response starts with the four-byte number of strings. For
+     * separate images, that is followed by the four-byte size and the data of
+     * each image in turn. For a sprite sheet, it is followed by the four-byte
+     * x, y, width and height of each string's image within the sheet, and then
+     * the four-byte size and the data of the sheet.</p>
+     * @throws RenderRequest.TooLargeException if the sprite sheet would have
+     *  more than {@link RenderRequest#MAX_PIXELS} pixels
+     */
+    public void write(OutputStream out) throws IOException {
+        write(out, null);
+    }
+
+    /**
+     * Renders the batch and writes the response, giving up if the request is
+     * abandoned before all the strings have been rendered.
+     * @param context tells whether the request has been abandoned, or
+     *  {@code null} to render the whole batch regardless
+     * @see #write(OutputStream)
+     */
+    void write(OutputStream out, RequestContext context) throws IOException {
+        Progress progress = new Progress(context);
+        int[] widths = new int[texts.length];
+        int[] heights = new int[texts.length];
+        int width = 0;
+        long height = 0;
+        if (sprite) {
+            // measure everything first, so that an oversized sheet is
+            // rejected before anything is drawn
+            pool.invoke(new RenderTask(true, null, null, widths, heights, progress, 0, texts.length));
+            progress.rethrow();
+            for (int i = 0; i < texts.length; i++) {
+                width = Math.max(width, widths[i]);
+                height += heights[i];
+            }
+            if (width * height > RenderRequest.MAX_PIXELS) {
+                throw new RenderRequest.TooLargeException(width, height);
+            }
+        }
+        BufferedImage[] images = sprite ? new BufferedImage[texts.length] : null;
+        ByteArrayOutputStream[] encoded = sprite ? null : new ByteArrayOutputStream[texts.length];
+        pool.invoke(new RenderTask(false, images, encoded, widths, heights, progress, 0, texts.length));
+        progress.rethrow();
+
+        if (sprite) {
+            // the images can come out a little different from their measurements
+            width = 0;
+            height = 0;
+            for (BufferedImage image : images) {
+                width = Math.max(width, image.getWidth());
+                height += image.getHeight();
+            }
+            if (width * height > RenderRequest.MAX_PIXELS) {
+                throw new RenderRequest.TooLargeException(width, height);
+            }
+        }
+
+        TextwriterDaemon.writeInt(out, texts.length);
+        if (sprite) {
+            BufferedImage sheet = new BufferedImage(Math.max(width, 1), Math.max((int)height, 1), BufferedImage.TYPE_4BYTE_ABGR);
+            Graphics2D g = sheet.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            int y = 0;
+            for (BufferedImage image : images) {
+                g.drawImage(image, 0, y, null);
+                TextwriterDaemon.writeInt(out, 0);
+                TextwriterDaemon.writeInt(out, y);
+                TextwriterDaemon.writeInt(out, image.getWidth());
+                TextwriterDaemon.writeInt(out, image.getHeight());
+                y += image.getHeight();
+            }
+            g.dispose();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            PngEncoder.write(sheet, baos);
+            Metrics.ENCODE.recordSince(start);
+            TextwriterDaemon.writeInt(out, baos.size());
+            baos.writeTo(out);
+        }
+        else {
+            for (ByteArrayOutputStream baos : encoded) {
+                TextwriterDaemon.writeInt(out, baos.size());
+                baos.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * What the tasks working on one batch share: the pixels rendered so far,
+     * which together may not exceed {@link RenderRequest#MAX_PIXELS}, and the
+     * first failure, which stops the others.
+     */
+    private static final class Progress {
+        private final RequestContext context;
+        private final AtomicLong pixels = new AtomicLong();
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        Progress(RequestContext context) {
+            this.context = context;
+        }
+
+        boolean failed() {
+            return failure.get() != null;
+        }
+
+        /**
+         * Checks that the request is still wanted and that an image of the
+         * given size fits in what is left of the batch's pixels.
+         */
+        void take(long width, long height) throws IOException {
+            if (context != null) {
+                context.check();
+            }
+            long total = pixels.addAndGet(width * height);
+            if (total > RenderRequest.MAX_PIXELS) {
+                throw new RenderRequest.TooLargeException("Batch of at least " + total
+                    + " pixels is over the limit of " + RenderRequest.MAX_PIXELS);
+            }
+        }
+
+        void fail(Exception e) {
+            failure.compareAndSet(null, e);
+        }
+
+        void rethrow() throws IOException {
+            Exception e = failure.get();
+            if (e instanceof IOException) {
+                throw (IOException)e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException)e;
+            }
+        }
+    }
+
+    /**
+     * Measures or renders a range of the strings, splitting it in half until
+     * each task holds a single string. Each string is measured, and counted
+     * against the batch's pixels, before it is rendered. If {@code encoded}
+     * is not {@code null}, each image is encoded as PNG and only the encoded
+     * image is kept.
+     */
+    private class RenderTask extends RecursiveAction {
+        private final boolean measure;
+        private final BufferedImage[] images;
+        private final ByteArrayOutputStream[] encoded;
+        // the measured size of each string, filled in when measuring
+        private final int[] widths;
+        private final int[] heights;
+        private final Progress progress;
+        private final int from;
+        private final int to;
+
+        RenderTask(boolean measure, BufferedImage[] images, ByteArrayOutputStream[] encoded, int[] widths, int[] heights,
+                Progress progress, int from, int to) {
+            this.measure = measure;
+            this.images = images;
+            this.encoded = encoded;
+            this.widths = widths;
+            this.heights = heights;
+            this.progress = progress;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RenderTask(measure, images, encoded, widths, heights, progress, from, mid),
+                    new RenderTask(measure, images, encoded, widths, heights, progress, mid, to));
+                return;
+            }
+            for (int i = from; i < to && !progress.failed(); i++) {
+                try {
+                    if (measure) {
+                        long[] size = RenderRequest.measureText(texts[i], font);
+                        widths[i] = (int)Math.min(size[0], Integer.MAX_VALUE);
+                        heights[i] = (int)Math.min(size[1], Integer.MAX_VALUE);
+                        continue;
+                    }
+                    if (images != null) {
+                        // measured already
+                        progress.take(widths[i], heights[i]);
+                    }
+                    else {
+                        long[] size = RenderRequest.measureText(texts[i], font);
+                        progress.take(size[0], size[1]);
+                    }
+                    BufferedImage image = RenderRequest.renderText(texts[i], font, background, foreground);
+                    if (encoded != null) {
+                        encoded[i] = new ByteArrayOutputStream();
+                        long start = System.nanoTime();
+                        PngEncoder.write(image, encoded[i]);
+                        Metrics.ENCODE.recordSince(start);
+                    }
+                    else {
+                        images[i] = image;
+                    }
+                }
+                catch (IOException ioe) {
+                    progress.fail(ioe);
+                }
+                catch (RuntimeException re) {
+                    progress.fail(re);
+                }
+            }
+        }
+    }
+}
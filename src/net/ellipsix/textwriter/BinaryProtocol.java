@@ -0,0 +1,393 @@
+/* BinaryProtocol.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Version 2 of the Textwriter protocol, in which every request and response
+ * is a binary frame with explicit integer fields.
+ *
+ * <p>A connection selects this protocol by sending {@link #MAGIC} as its
+ * first byte. After that, each request is a {@value #HEADER_SIZE}-byte header
+ * followed by a payload. All integers are big-endian.</p>
+ * <pre>
+ * u8  mode        one of the TextwriterDaemon mode constants
+ * u8  flags       reserved, must be 0
+ * u16 deadline    milliseconds the client will wait for a render, or 0
+ * u32 request ID  echoed in the response
+ * u32 length      the number of payload bytes that follow
+ * </pre>
+ * <p>The payload of a {@link TextwriterDaemon#RENDER_MODE} request is</p>
+ * <pre>
+ * u16 font size in points
+ * u8  style       Font.BOLD and/or Font.ITALIC
+ * u8  reserved
+ * u32 background  RGBA
+ * u32 foreground  RGBA
+ * u16 n, then n bytes of UTF-8: the font name
+ * u32 n, then n bytes of UTF-8: the text, which may contain line breaks
+ * </pre>
+ * <p>A {@link TextwriterDaemon#PARAGRAPH_MODE} payload is the same except for
+ * the fields of a {@link ParagraphLayout}: the reserved byte holds the
+ * alignment, 0 for left, 1 for center or 2 for right, and the colors are
+ * followed by</p>
+ * <pre>
+ * u16 width       to wrap the text to in pixels, or 0 to break lines only at line breaks
+ * u16 spacing     from one baseline to the next, as a percentage of the line height
+ * </pre>
+ * <p>The payload of a {@link TextwriterDaemon#MASK_MODE} request is</p>
+ * <pre>
+ * u16 font size in points
+ * u8  style       Font.BOLD and/or Font.ITALIC
+ * u8  encoding    CoverageMask.ENCODING_RAW or ENCODING_DEFLATE
+ * u16 n, then n bytes of UTF-8: the font name
+ * u32 n, then n bytes of UTF-8: the text
+ * </pre>
+ * <p>A {@link TextwriterDaemon#FONT_ADD_MODE} or
+ * {@link TextwriterDaemon#FONT_ADD_ASYNC_MODE} payload is the UTF-8 path of the
+ * file or directory to load, a {@link TextwriterDaemon#FONT_JOB_MODE} payload
+ * is the u32 ID of a {@link FontLoadJob}, a {@link TextwriterDaemon#FONT_LIST_SINCE_MODE}
+ * payload is the u64 version of the font list the client last saw, and a
+ * {@link TextwriterDaemon#FONT_LIST_MODE} payload is empty, as is a
+ * {@link TextwriterDaemon#STATS_MODE} payload.</p>
+ *
+ * <p>Each response is a {@value #RESPONSE_HEADER_SIZE}-byte header holding the
+ * u32 request ID, a u8 status and the u32 length of the payload that follows.
+ * A render or paragraph response carries the PNG image, a mask response carries the
+ * {@link CoverageMask}, an asynchronous font add response carries the u32 job
+ * ID, a font list since a version carries the u64 current version, a u8 that
+ * is 1 if all fonts are listed or 0 if only the ones added since, and the
+ * listing, and a font list, stats or font job
+ * response carries the same listing as in the original protocol; asking
+ * about an unknown job gets a {@link #STATUS_FAILED} response. Render
+ * paragraph and mask requests are processed concurrently and may be answered out of order; other
+ * requests are answered in order. A request that can't be handled, including one with an unknown
+ * mode, gets a {@link #STATUS_FAILED} response with an empty payload, and the
+ * connection carries on with the next frame.</p>
+ * <p>A render request that arrives while the render queue is full gets a
+ * {@link #STATUS_OVERLOADED} response straight away. One whose deadline
+ * passes before it is done is abandoned and gets a {@link #STATUS_EXPIRED}
+ * response.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class BinaryProtocol {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    /** The first byte of a connection that uses this protocol */
+    static final int MAGIC = 0xf2;
+
+    static final int HEADER_SIZE = 12;
+    static final int RESPONSE_HEADER_SIZE = 9;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_FAILED = 1;
+    static final int STATUS_OVERLOADED = 2;
+    static final int STATUS_EXPIRED = 3;
+
+    private BinaryProtocol() {}
+
+    /**
+     * Returns the length of the frame at the buffer's position, or
+     * {@link RequestFramer#INCOMPLETE} if the whole frame hasn't arrived.
+     */
+    static int frameLength(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE) {
+            return RequestFramer.INCOMPLETE;
+        }
+        int length = buf.getInt(buf.position() + 8);
+        if (length < 0 || length > TextwriterDaemon.MAX_REQUEST_SIZE - HEADER_SIZE) {
+            // never completes, so the connection is dropped once its buffer is full
+            return RequestFramer.INCOMPLETE;
+        }
+        return buf.remaining() < HEADER_SIZE + length ? RequestFramer.INCOMPLETE : HEADER_SIZE + length;
+    }
+
+    /**
+     * Returns {@code true} if the frame at the buffer's position can be
+     * processed concurrently with other frames from the same connection.
+     */
+    static boolean isPipelined(ByteBuffer frame) {
+        int mode = frame.get(frame.position());
+        return mode == TextwriterDaemon.RENDER_MODE || mode == TextwriterDaemon.PARAGRAPH_MODE
+                || mode == TextwriterDaemon.MASK_MODE;
+    }
+
+    /**
+     * Returns the deadline of the frame at the buffer's position, in
+     * milliseconds from when it was received, or 0 if it has none.
+     */
+    static int timeoutMillis(ByteBuffer frame) {
+        return frame.getShort(frame.position() + 2) & 0xffff;
+    }
+
+    /**
+     * Returns a complete {@link #STATUS_OVERLOADED} response to the frame at
+     * the buffer's position.
+     */
+    static byte[] overloadedResponse(ByteBuffer frame) {
+        ByteBuffer response = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+        response.putInt(frame.getInt(frame.position() + 4));
+        response.put((byte)STATUS_OVERLOADED);
+        response.putInt(0);
+        return response.array();
+    }
+
+    /**
+     * Processes one frame and writes the response frame.
+     * @param frame a heap buffer holding exactly one frame
+     * @param context tells whether the request has been abandoned
+     * @param out the stream to write the response to
+     * @throws RequestContext.AbandonedException if the connection closed
+     *  before a response was written
+     */
+    static void handleRequest(ByteBuffer frame, RequestContext context, OutputStream out) throws IOException {
+        int mode = frame.get() & 0xff;
+        frame.get(); // flags
+        frame.getShort(); // deadline
+        int id = frame.getInt();
+        int length = frame.getInt();
+        switch (mode) {
+            case TextwriterDaemon.RENDER_MODE:
+            case TextwriterDaemon.PARAGRAPH_MODE:
+                logger.fine("Rendering text for request " + id);
+                RenderRequest req;
+                try {
+                    req = parseRenderRequest(frame, mode == TextwriterDaemon.PARAGRAPH_MODE);
+                }
+                catch (RuntimeException re) {
+                    // a malformed payload
+                    logger.throwing("BinaryProtocol", "handleRequest", re);
+                    req = null;
+                }
+                if (req == null) {
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                byte[] image;
+                try {
+                    image = TextwriterDaemon.renderImage(req, context);
+                }
+                catch (RequestContext.AbandonedException ae) {
+                    if (!ae.isExpired()) {
+                        throw ae;
+                    }
+                    logger.info("Abandoned request " + id + " after its deadline");
+                    writeHeader(out, id, STATUS_EXPIRED, 0);
+                    break;
+                }
+                catch (RenderRequest.TooLargeException tle) {
+                    logger.info("Rejected request " + id + ": " + tle.getMessage());
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                catch (RuntimeException re) {
+                    // such as text that can't be laid out
+                    logger.log(Level.WARNING, "Failed to render request " + id, re);
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                writeHeader(out, id, STATUS_OK, image.length);
+                out.write(image);
+                break;
+            case TextwriterDaemon.MASK_MODE:
+                logger.fine("Rendering coverage mask for request " + id);
+                String text = null;
+                Font font = null;
+                boolean deflate = false;
+                try {
+                    long start = System.nanoTime();
+                    int size = frame.getShort() & 0xffff;
+                    int style = frame.get() & (Font.BOLD | Font.ITALIC);
+                    deflate = frame.get() == CoverageMask.ENCODING_DEFLATE;
+                    String fontName = getString(frame, frame.getShort() & 0xffff);
+                    text = getString(frame, frame.getInt());
+                    font = FontCollection.getInstance().getFont(fontName, style, size);
+                    Metrics.PARSE.recordSince(start);
+                }
+                catch (RuntimeException re) {
+                    // a malformed payload
+                    logger.throwing("BinaryProtocol", "handleRequest", re);
+                }
+                if (font == null) {
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                byte[] mask;
+                try {
+                    mask = TextwriterDaemon.renderMask(text, font, deflate, context);
+                }
+                catch (RequestContext.AbandonedException ae) {
+                    if (!ae.isExpired()) {
+                        throw ae;
+                    }
+                    logger.info("Abandoned request " + id + " after its deadline");
+                    writeHeader(out, id, STATUS_EXPIRED, 0);
+                    break;
+                }
+                catch (RenderRequest.TooLargeException tle) {
+                    logger.info("Rejected request " + id + ": " + tle.getMessage());
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                catch (RuntimeException re) {
+                    // such as text that can't be laid out
+                    logger.log(Level.WARNING, "Failed to render request " + id, re);
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                writeHeader(out, id, STATUS_OK, mask.length);
+                out.write(mask);
+                break;
+            default:
+                try {
+                    handleControlRequest(mode, id, length, frame, out);
+                }
+                catch (RuntimeException re) {
+                    // nothing has been written by the time one of these is thrown
+                    logger.log(Level.WARNING, "Failed to handle request " + id + " with mode " + mode, re);
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Processes one frame of a mode other than a render or mask, which are
+     * answered in order, and writes the response frame.
+     */
+    private static void handleControlRequest(int mode, int id, int length, ByteBuffer frame, OutputStream out) throws IOException {
+        switch (mode) {
+            case TextwriterDaemon.FONT_LIST_MODE:
+                byte[] list = FontCollection.getInstance().getListing();
+                writeHeader(out, id, STATUS_OK, list.length);
+                out.write(list);
+                break;
+            case TextwriterDaemon.FONT_LIST_SINCE_MODE:
+                if (length < 8) {
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                FontCollection.Listing listing = FontCollection.getInstance().getListingSince(frame.getLong());
+                writeHeader(out, id, STATUS_OK, 9 + listing.data.length);
+                TextwriterDaemon.writeInt(out, (int)(listing.version >>> 32));
+                TextwriterDaemon.writeInt(out, (int)listing.version);
+                out.write(listing.complete ? 1 : 0);
+                out.write(listing.data);
+                break;
+            case TextwriterDaemon.STATS_MODE:
+                ByteArrayOutputStream stats = new ByteArrayOutputStream();
+                Metrics.writeStats(stats);
+                writeHeader(out, id, STATUS_OK, stats.size());
+                stats.writeTo(out);
+                break;
+            case TextwriterDaemon.FONT_ADD_MODE:
+                boolean added = TextwriterDaemon.addFonts(getString(frame, length));
+                writeHeader(out, id, added ? STATUS_OK : STATUS_FAILED, 0);
+                break;
+            case TextwriterDaemon.FONT_ADD_ASYNC_MODE:
+                int jobId = TextwriterDaemon.startAddFonts(getString(frame, length));
+                writeHeader(out, id, STATUS_OK, 4);
+                TextwriterDaemon.writeInt(out, jobId);
+                break;
+            case TextwriterDaemon.FONT_JOB_MODE:
+                FontLoadJob job = length >= 4 ? FontLoadJob.get(frame.getInt()) : null;
+                if (job == null) {
+                    writeHeader(out, id, STATUS_FAILED, 0);
+                    break;
+                }
+                ByteArrayOutputStream status = new ByteArrayOutputStream();
+                job.writeStatus(status);
+                writeHeader(out, id, STATUS_OK, status.size());
+                status.writeTo(out);
+                break;
+            default:
+                logger.info("Invalid mode " + mode + " in request " + id);
+                writeHeader(out, id, STATUS_FAILED, 0);
+                break;
+        }
+    }
+
+    /**
+     * Reads a render or paragraph request payload, decoding the font name and
+     * text straight from the buffer.
+     * @param paragraph whether the payload holds paragraph layout fields
+     * @return the request, or {@code null} if there is no such font
+     */
+    static RenderRequest parseRenderRequest(ByteBuffer payload, boolean paragraph) {
+        long start = System.nanoTime();
+        int size = payload.getShort() & 0xffff;
+        int style = payload.get() & (Font.BOLD | Font.ITALIC);
+        int alignment = payload.get(); // reserved in a render request
+        Color background = toColor(payload.getInt());
+        Color foreground = toColor(payload.getInt());
+        int maxWidth = paragraph ? payload.getShort() & 0xffff : 0;
+        int lineSpacing = paragraph ? payload.getShort() & 0xffff : ParagraphLayout.SINGLE_SPACING;
+        String fontName = getString(payload, payload.getShort() & 0xffff);
+        String text = getString(payload, payload.getInt());
+        Font font = FontCollection.getInstance().getFont(fontName, style, size);
+        if (font == null) {
+            return null;
+        }
+        RenderRequest req = new RenderRequest(text, font, background, foreground);
+        if (paragraph) {
+            req.setParagraphLayout(maxWidth, alignment, lineSpacing);
+        }
+        Metrics.PARSE.recordSince(start);
+        return req;
+    }
+
+    /**
+     * Decodes a UTF-8 string of the given length at the buffer's position and
+     * advances the position past it.
+     */
+    private static String getString(ByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("String of length " + length + " overruns the frame");
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, TextwriterDaemon.TRANSFER_CHARSET);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    private static Color toColor(int rgba) {
+        return new Color(rgba >>> 24, (rgba >> 16) & 0xff, (rgba >> 8) & 0xff, rgba & 0xff);
+    }
+
+    static void writeHeader(OutputStream out, int id, int status, int length) throws IOException {
+        TextwriterDaemon.writeInt(out, id);
+        out.write(status);
+        TextwriterDaemon.writeInt(out, length);
+    }
+}
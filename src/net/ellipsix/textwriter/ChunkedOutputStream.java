@@ -0,0 +1,122 @@
+/* ChunkedOutputStream.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that frames the data written to it as a series of chunks,
+ * each preceded by its four-byte big-endian length, and ends the series with
+ * a zero-length chunk. This lets a response be sent before its total size is
+ * known.
+ *
+ * <p>Data is collected in a caller-supplied buffer, so a thread can reuse
+ * one buffer for every response it streams. Each full buffer is written out
+ * as a chunk and the underlying stream is flushed, so the receiver starts
+ * getting data as soon as the first chunk is full.</p>
+ *
+ * @author David Zaslavsky
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+    private final byte[] buf;
+    private int count = 0;
+    private boolean finished = false;
+
+    /**
+     * Creates a new {@code ChunkedOutputStream}.
+     * @param out the stream to write chunks to
+     * @param buf the buffer to collect each chunk in; its length is the
+     *  largest chunk that will be written
+     */
+    public ChunkedOutputStream(OutputStream out, byte[] buf) {
+        super(out);
+        this.buf = buf;
+    }
+
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            writeChunk();
+        }
+        buf[count++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buf.length) {
+                writeChunk();
+            }
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes any buffered data as a chunk and flushes the underlying stream.
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk();
+        }
+        else {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes any buffered data followed by the terminating zero-length chunk.
+     * The underlying stream is left open.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            if (count > 0) {
+                writeChunk();
+            }
+            TextwriterDaemon.writeInt(out, 0);
+            out.flush();
+            finished = true;
+        }
+    }
+
+    /**
+     * Finishes the chunk series without closing the underlying stream, which
+     * belongs to the connection.
+     */
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void writeChunk() throws IOException {
+        TextwriterDaemon.writeInt(out, count);
+        out.write(buf, 0, count);
+        out.flush();
+        count = 0;
+    }
+}
@@ -0,0 +1,270 @@
+/* CoverageMask.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.TextLayout;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Rendered text as a single-channel mask of how much of each pixel the
+ * glyphs cover, from 0 for none to 255 for all, with no colors applied.
+ *
+ * <p>A client that knows what it is drawing onto can colorize the mask
+ * itself, so one mask serves every color combination, and it is a quarter of
+ * the size of the RGBA image before any compression. The mask covers the
+ * same box as the image {@link RenderRequest#renderText} would make.</p>
+ *
+ * <p>{@link #write(OutputStream, boolean)} sends a mask as</p>
+ * <pre>
+ * u32 width
+ * u32 height
+ * i32 x of the text's origin, where the baseline starts, in the mask
+ * i32 y of the baseline in the mask
+ * i32 advance of the text, in pixels
+ * u8  encoding    ENCODING_RAW or ENCODING_DEFLATE
+ * u32 n, then n bytes: the coverage
+ * </pre>
+ * <p>The coverage runs in rows from the top, one byte per pixel, with no
+ * padding. With {@link #ENCODING_DEFLATE} it is compressed as a zlib stream
+ * at the level of <tt>textwriter.pngLevel</tt>.</p>
+ *
+ * @author David Zaslavsky
+ */
+public final class CoverageMask {
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_DEFLATE = 1;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(PngEncoder.level);
+        }
+    };
+
+    private final byte[] coverage;
+    private final int width;
+    private final int height;
+    private final int originX;
+    private final int baseline;
+    private final int advance;
+
+    CoverageMask(byte[] coverage, int width, int height, int originX, int baseline, int advance) {
+        this.coverage = coverage;
+        this.width = width;
+        this.height = height;
+        this.originX = originX;
+        this.baseline = baseline;
+        this.advance = advance;
+    }
+
+    /**
+     * Renders the coverage mask of the given text.
+     * @throws RenderRequest.TooLargeException if the mask would have more
+     *  than {@link RenderRequest#MAX_PIXELS} pixels
+     */
+    public static CoverageMask render(String text, Font font) {
+        if (text.indexOf('\n') >= 0) {
+            return ParagraphLayout.layout(text, font, 0, ParagraphLayout.ALIGN_LEFT, ParagraphLayout.SINGLE_SPACING).render();
+        }
+        // short, simple text is composited from pre-rasterized glyphs
+        long start = System.nanoTime();
+        CoverageMask composited = GlyphAtlas.renderMask(text, font);
+        if (composited != null) {
+            Metrics.RASTERIZE.recordSince(start);
+            Metrics.pixels.add((long)composited.width * composited.height);
+            return composited;
+        }
+        start = System.nanoTime();
+        TextLayout layout = RenderRequest.getLayout(text, font, RenderRequest.FRC);
+        Rectangle2D bounds = layout.getBounds();
+        start = Metrics.LAYOUT.recordSince(start);
+        long width = (long)(bounds.getWidth() + 1);
+        long height = (long)(bounds.getHeight() + 1);
+        if (width * height > RenderRequest.MAX_PIXELS) {
+            throw new RenderRequest.TooLargeException(width, height);
+        }
+
+        // white on black in a gray image leaves the coverage as the gray level
+        BufferedImage image = new BufferedImage((int)width, (int)height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        layout.draw(g, -(float)bounds.getX(), -(float)bounds.getY());
+        g.dispose();
+        Metrics.RASTERIZE.recordSince(start);
+        Metrics.pixels.add(width * height);
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        return new CoverageMask(data, (int)width, (int)height, (int)Math.round(-bounds.getX()),
+                (int)Math.round(-bounds.getY()), Math.round(layout.getAdvance()));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the x coordinate in the mask of the point where the text's
+     * baseline starts.
+     */
+    public int getOriginX() {
+        return originX;
+    }
+
+    /**
+     * Returns the y coordinate of the text's baseline in the mask.
+     */
+    public int getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * Returns how far the text advances the pen, in pixels.
+     */
+    public int getAdvance() {
+        return advance;
+    }
+
+    /**
+     * Returns the coverage of each pixel, in rows from the top. The array
+     * is not copied.
+     */
+    public byte[] getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Converts the mask to an image of the text in the given colors.
+     * @param pooled whether to draw into an image from the current thread's
+     *  {@link RasterPool}
+     */
+    BufferedImage toImage(Color bgColor, Color fgColor, boolean pooled) {
+        BufferedImage image = pooled ? RasterPool.createImage(width, height)
+                : new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        fill(data, width * height, bgColor);
+        blend(data, width, coverage, width, height, 0, 0, fgColor);
+        return image;
+    }
+
+    /**
+     * Fills the first pixels of ABGR image data with a color.
+     */
+    static void fill(byte[] data, int pixels, Color color) {
+        byte a = (byte)color.getAlpha();
+        byte b = (byte)color.getBlue();
+        byte g = (byte)color.getGreen();
+        byte r = (byte)color.getRed();
+        for (int i = 0; i < 4 * pixels; i += 4) {
+            data[i] = a;
+            data[i + 1] = b;
+            data[i + 2] = g;
+            data[i + 3] = r;
+        }
+    }
+
+    /**
+     * Draws a color over ABGR image data through a coverage mask, which must
+     * lie within the image.
+     * @param width the width of the image
+     * @param coverage the mask, in rows of {@code cw} bytes
+     * @param x the position of the mask in the image
+     * @param y the position of the mask in the image
+     */
+    static void blend(byte[] data, int width, byte[] coverage, int cw, int ch, int x, int y, Color color) {
+        int fgA = color.getAlpha();
+        int fgB = color.getBlue();
+        int fgG = color.getGreen();
+        int fgR = color.getRed();
+        for (int my = 0; my < ch; my++) {
+            int row = ((y + my) * width + x) * 4;
+            for (int mx = 0; mx < cw; mx++) {
+                int cov = coverage[my * cw + mx] & 0xff;
+                if (cov == 0) {
+                    continue;
+                }
+                int i = row + mx * 4;
+                int sa = (fgA * cov + 127) / 255;
+                int da = data[i] & 0xff;
+                // source over, with straight (not premultiplied) alpha
+                int dw = da * (255 - sa);
+                int oa = sa * 255 + dw;
+                if (oa == 0) {
+                    continue;
+                }
+                data[i] = (byte)((oa + 127) / 255);
+                data[i + 1] = (byte)((fgB * sa * 255 + (data[i + 1] & 0xff) * dw) / oa);
+                data[i + 2] = (byte)((fgG * sa * 255 + (data[i + 2] & 0xff) * dw) / oa);
+                data[i + 3] = (byte)((fgR * sa * 255 + (data[i + 3] & 0xff) * dw) / oa);
+            }
+        }
+    }
+
+    /**
+     * Writes the mask in the layout described above.
+     * @param deflate whether to compress the coverage
+     */
+    public void write(OutputStream out, boolean deflate) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = coverage;
+        int length = width * height;
+        if (deflate) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 4, 64));
+            DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater);
+            dos.write(coverage, 0, length);
+            dos.finish();
+            data = compressed.toByteArray();
+            length = data.length;
+        }
+        Metrics.ENCODE.recordSince(start);
+        byte[] header = new byte[25];
+        TextwriterDaemon.putInt(header, 0, width);
+        TextwriterDaemon.putInt(header, 4, height);
+        TextwriterDaemon.putInt(header, 8, originX);
+        TextwriterDaemon.putInt(header, 12, baseline);
+        TextwriterDaemon.putInt(header, 16, advance);
+        header[20] = (byte)(deflate ? ENCODING_DEFLATE : ENCODING_RAW);
+        TextwriterDaemon.putInt(header, 21, length);
+        out.write(header);
+        out.write(data, 0, length);
+    }
+}
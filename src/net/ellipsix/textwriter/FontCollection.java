@@ -38,21 +38,26 @@ import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Contains the system's collection of fonts and shared font-related attributes.
- * The collection is internally synchronized so that instances of <code>FontCollection</code>
+ * Lookups read an immutable snapshot of the collection without taking any lock, and
+ * every change publishes a new snapshot, so that instances of <code>FontCollection</code>
  * are safe for access by multiple threads.
  * @author David Zaslavsky
  */
@@ -63,10 +68,29 @@ public class FontCollection {
      * A font associated with zero or more key-value attributes.
      */
     public static class TaggedFont {
-        // The font
-        private Font fnt;
+        // The most derived fonts kept for one TaggedFont
+        private static final int MAX_DERIVED = 64;
+
+        // The font, or null until it is first used if it is loaded lazily
+        private volatile Font fnt;
+        // The family name
+        private final String family;
+        // The file to create the font from, if it is loaded lazily
+        private final File file;
+        // Set if the font could not be created from the file
+        private boolean unreadable;
         // The attributes
         private Map<String,String> attributes;
+        // The version of the collection this font was added in
+        long version;
+        // Fonts derived from this one, keyed by style and size, in order of
+        // use so that sizes that are rarely asked for are the ones dropped;
+        // guarded by itself
+        private final LinkedHashMap<Long,Font> derived = new LinkedHashMap<Long,Font>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long,Font> eldest) {
+                return size() > MAX_DERIVED;
+            }
+        };
         
         /**
          * Constructs a new {@code TaggedFont} with the given {@link Font} and
@@ -76,8 +100,34 @@ public class FontCollection {
          * @throws IllegalArgumentException if {@code fnt} is {@code null}
          */
         TaggedFont(Font fnt, Map<String,String> attrs) {
+            this(fnt, fnt == null ? null : fnt.getFamily(), null, attrs);
+        }
+
+        /**
+         * Constructs a new {@code TaggedFont} with the given {@link Font},
+         * kept in the collection under the given family name, and attributes.
+         * @throws IllegalArgumentException if {@code fnt} is {@code null}
+         */
+        TaggedFont(Font fnt, String family, Map<String,String> attrs) {
+            this(fnt, family, null, attrs);
+        }
+
+        /**
+         * Constructs a new {@code TaggedFont} whose font will be created from
+         * the given TrueType file the first time it is used.
+         * @param family the family name of the font in {@code file}
+         * @param file a TrueType font file
+         * @param attrs the attributes
+         */
+        TaggedFont(String family, File file, Map<String,String> attrs) {
+            this(null, family, file, attrs);
+        }
+
+        private TaggedFont(Font fnt, String family, File file, Map<String,String> attrs) {
             this.fnt = fnt;
-            if (fnt == null) {
+            this.family = family;
+            this.file = file;
+            if (fnt == null && file == null) {
                 throw new IllegalArgumentException("Null font");
             }
             if (attrs == null) {
@@ -89,10 +139,43 @@ public class FontCollection {
         }
         
         /**
-         * Returns the {@link Font} object.
+         * Returns the {@link Font} object, creating it first if it is loaded
+         * lazily. When several threads ask for a lazily loaded font at once,
+         * it is still only created once.
+         * @return the font, or {@code null} if it was loaded lazily and its
+         *  file turned out not to hold a usable font
          */
         public Font getFont() {
-            return fnt;
+            Font font = fnt;
+            if (font == null) {
+                synchronized (this) {
+                    font = fnt;
+                    if (font == null && !unreadable) {
+                        try {
+                            logger.finest("Creating font " + family + " from " + file.getPath());
+                            font = Font.createFont(Font.TRUETYPE_FONT, file);
+                            fnt = font;
+                        }
+                        catch (FontFormatException ffe) {
+                            logger.warning("Cannot create font " + family + ": " + ffe);
+                            unreadable = true;
+                        }
+                        catch (IOException ioe) {
+                            logger.warning("Cannot create font " + family + ": " + ioe);
+                            unreadable = true;
+                        }
+                    }
+                }
+            }
+            return font;
+        }
+
+        /**
+         * Returns the family name of the font, without creating the font if it
+         * is loaded lazily.
+         */
+        public String getFamily() {
+            return family;
         }
         
         /**
@@ -104,24 +187,150 @@ public class FontCollection {
         public Map<String,String> getAttributes() {
             return attributes;
         }
+
+        /**
+         * Returns this font in the given style and size, deriving it only the
+         * first time each combination is asked for. Since the derived fonts
+         * belong to this {@code TaggedFont}, they go away when it is replaced.
+         * @return the derived font, or {@code null} if {@link #getFont()}
+         *  returns {@code null}
+         * @see Font#deriveFont(int,float)
+         */
+        Font derive(int style, float size) {
+            Long key = ((long)style << 32) | Float.floatToIntBits(size);
+            synchronized (derived) {
+                Font font = derived.get(key);
+                if (font != null) {
+                    return font;
+                }
+            }
+            Font base = getFont();
+            if (base == null) {
+                return null;
+            }
+            Font font = new FamilyFont(base.deriveFont(style, size), this);
+            synchronized (derived) {
+                Font existing = derived.get(key);
+                if (existing != null) {
+                    return existing;
+                }
+                derived.put(key, font);
+            }
+            return font;
+        }
     }
-    
-    public static final FontCollection getInstance() {
-        if (instance == null) {
-            logger.finer("Creating FontCollection instance");
-            instance = new FontCollection();
+
+    /**
+     * A font handed out by the collection, which remembers the
+     * {@link TaggedFont} it was derived from. {@link RenderCache} and
+     * {@link GlyphAtlas} use that to find what to drop when the family is
+     * replaced, since {@link Font#getFamily()} depends on the locale and need
+     * not match the name the family is kept under, and to avoid caching
+     * anything rendered in a font that was replaced while it was in use.
+     * It equals the {@link Font} it was copied from.
+     */
+    static final class FamilyFont extends Font {
+        private static final long serialVersionUID = 1L;
+
+        private final transient TaggedFont owner;
+
+        FamilyFont(Font font, TaggedFont owner) {
+            super(font);
+            this.owner = owner;
+        }
+
+        /**
+         * Returns the name the family of the given font is kept under in the
+         * collection, or {@code null} if the font did not come from the
+         * collection.
+         */
+        static String familyOf(Font font) {
+            return font instanceof FamilyFont ? ((FamilyFont)font).owner.getFamily() : null;
+        }
+
+        /**
+         * Returns whether the given font is still in the collection, that is,
+         * whether it did not come from the collection or the family it came
+         * from has not since been replaced or taken out.
+         */
+        static boolean isCurrent(Font font) {
+            if (!(font instanceof FamilyFont)) {
+                return true;
+            }
+            TaggedFont owner = ((FamilyFont)font).owner;
+            return getInstance().snapshot.fonts.get(owner.getFamily()) == owner;
         }
-        return instance;
+    }
+
+    /**
+     * Returns the collection, creating it the first time this is called. It is
+     * only ever created once, however many threads call this at once.
+     */
+    public static final FontCollection getInstance() {
+        return InstanceHolder.instance;
     }
     
-    private static FontCollection instance = null;
+    // Creates the instance when it is first asked for
+    private static final class InstanceHolder {
+        static final FontCollection instance = new FontCollection();
+    }
     
-    // A map of font names to their corresponding fonts
-    private HashMap<String, TaggedFont> fonts = new HashMap<String, TaggedFont>();
-    // Access lock for the font map
-    private ReentrantReadWriteLock fontlock = new ReentrantReadWriteLock(false);
-    // A set of font names
-    private Set<String> fontNames = Collections.unmodifiableSet(fonts.keySet());
+    /**
+     * One version of the collection. A published snapshot is never modified,
+     * except to fill in its listing; a change copies the map of fonts and
+     * publishes a new snapshot holding the copy.
+     */
+    private static final class Snapshot {
+        // A read-only map of font names to their corresponding fonts
+        final Map<String, TaggedFont> fonts;
+        final long version;
+        // The first version after fonts were last taken out; the changes since
+        // any earlier version can't be listed
+        final long removed;
+        // The encoded listing of all fonts, built when first asked for
+        volatile byte[] listing;
+
+        Snapshot(Map<String, TaggedFont> fonts, long version, long removed) {
+            this.fonts = fonts;
+            this.version = version;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * An encoded listing of fonts, as returned by {@link #getListingSince(long)}.
+     */
+    static final class Listing {
+        /** The version of the collection that was listed */
+        final long version;
+        /** Whether the listing holds every font, rather than only the changes */
+        final boolean complete;
+        /** The listing, in UTF-8 */
+        final byte[] data;
+
+        Listing(long version, boolean complete, byte[] data) {
+            this.version = version;
+            this.complete = complete;
+            this.data = data;
+        }
+    }
+
+    // The current version of the collection. Versions count up from the time
+    // the collection was created, so that a version handed out before a restart
+    // is older than any handed out after it
+    private volatile Snapshot snapshot;
+    {
+        long start = System.currentTimeMillis();
+        snapshot = new Snapshot(Collections.<String, TaggedFont>emptyMap(), start, start);
+    }
+    // Held while a new snapshot is made, so that no change is lost
+    private final Object writeLock = new Object();
+    // Whether font files are added from their name tables, to be created when first used
+    private static final boolean lazy = Boolean.parseBoolean(System.getProperty("textwriter.lazyFonts", "true"));
+    // What is known about loaded font files, or null if there is no index
+    private final FontIndex index = FontIndex.open();
+    // Watches the directories fonts were loaded from, or null if they are not watched
+    private final FontWatcher watcher = FontWatcher.create(this);
     
     public static final String SOURCE = "source";
     public static final String SYSTEM_FONT = "system";
@@ -129,10 +338,17 @@ public class FontCollection {
     
     /**
      * Creates a new instance of {@code FontCollection} and initializes it with the
-     * system fonts.
+     * system fonts and the fonts in the font index, if there is one.
      */
     private FontCollection() {
+        logger.finer("Creating FontCollection instance");
         addSystemFonts(false);
+        if (index != null) {
+            loadIndex();
+        }
+        if (watcher != null) {
+            watcher.start();
+        }
     }
 
     /**
@@ -146,34 +362,35 @@ public class FontCollection {
      * @see Font#deriveFont(int,float)
      */
     public Font getFont(String fontName, int style, float size) {
-        logger.entering("FontCollection", "getFont", new Object[] {fontName, style, size});
-        TaggedFont tfont;
-        fontlock.readLock().lock();
-        try {
-            tfont = fonts.get(fontName);
-        }
-        finally {
-            fontlock.readLock().unlock();
+        if (logger.isLoggable(Level.FINER)) {
+            logger.entering("FontCollection", "getFont", new Object[] {fontName, style, size});
         }
-        
+        long start = System.nanoTime();
+        TaggedFont tfont = snapshot.fonts.get(fontName);
         if (tfont == null) {
             logger.config("No font of name " + fontName + " found");
             return null;
         }
-        Font font = tfont.getFont();
-        logger.finest("Found font " + font.toString());
-        font = font.deriveFont(style, size);
-        logger.finer("Returning font " + font.toString());
+        Font font = tfont.derive(style, size);
+        Metrics.FONT_LOOKUP.recordSince(start);
+        if (font == null) {
+            logger.config("Font " + fontName + " could not be loaded");
+            return null;
+        }
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("Returning font " + font.toString());
+        }
         return font;
     }
     
     /**
      * Returns a {@link Set} of {@code String} objects representing the names
-     * of fonts in this collection.
+     * of fonts in this collection. The set is read-only and does not change
+     * when fonts are added later.
      * @return a {@code Set} containing the list of font names
      */
     public Set<String> getAllFontNames() {
-        return fontNames;
+        return snapshot.fonts.keySet();
     }
     
     /**
@@ -184,28 +401,14 @@ public class FontCollection {
      *   {@code false} otherwise
      */
     public boolean fontExists(String fontName) {
-        fontlock.readLock().lock();
-        try {
-            return fonts.containsKey(fontName);
-        }
-        finally {
-            fontlock.readLock().unlock();
-        }
+        return snapshot.fonts.containsKey(fontName);
     }
     
     /**
      * Gets all the attributes for a given font.
      */
     public Map<String,String> getFontAttributes(String fontName) {
-        TaggedFont tfont;
-        fontlock.readLock().lock();
-        try {
-            tfont = fonts.get(fontName);
-        }
-        finally {
-            fontlock.readLock().unlock();
-        }
-        
+        TaggedFont tfont = snapshot.fonts.get(fontName);
         if (tfont == null) {
             return null;
         }
@@ -214,10 +417,74 @@ public class FontCollection {
 
     /**
      * Gets the complete list of {@link TaggedFont} objects stored by this
-     * {@code FontCollection}.
+     * {@code FontCollection}, as one consistent, read-only snapshot that
+     * does not change when fonts are added later.
      */
     Collection<TaggedFont> getAllFonts() {
-        return Collections.unmodifiableCollection(fonts.values());
+        return snapshot.fonts.values();
+    }
+
+    /**
+     * Returns the current version of the collection, which goes up every time
+     * fonts are added.
+     */
+    long getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * Returns the listing of all fonts in the collection, encoded in UTF-8: a
+     * line holding each font's name followed by a <tt>key=value</tt> line for
+     * each of its attributes, and a blank line at the end. The listing is only
+     * encoded once for each version of the collection.
+     * @return the listing, which must not be modified
+     */
+    byte[] getListing() {
+        return getListing(snapshot);
+    }
+
+    /**
+     * Returns a listing of the fonts that were added to the collection after
+     * the given version, laid out like {@link #getListing()}. If fonts have
+     * been taken out since then, or the version is not one this collection
+     * has had, the listing holds all fonts instead.
+     * @param since a version returned by {@link #getVersion()} or by an earlier
+     *  listing
+     */
+    Listing getListingSince(long since) {
+        Snapshot current = snapshot;
+        if (since < current.removed || since > current.version) {
+            return new Listing(current.version, true, getListing(current));
+        }
+        List<TaggedFont> changed = new ArrayList<TaggedFont>();
+        for (TaggedFont tfont : current.fonts.values()) {
+            if (tfont.version > since) {
+                changed.add(tfont);
+            }
+        }
+        return new Listing(current.version, false, encodeListing(changed));
+    }
+
+    private static byte[] getListing(Snapshot current) {
+        byte[] listing = current.listing;
+        if (listing == null) {
+            // two threads may both encode it, but they get the same result
+            listing = encodeListing(current.fonts.values());
+            current.listing = listing;
+        }
+        return listing;
+    }
+
+    private static byte[] encodeListing(Collection<TaggedFont> fonts) {
+        StringBuilder sb = new StringBuilder(fonts.size() * 32);
+        for (TaggedFont tfont : fonts) {
+            sb.append(tfont.getFamily()).append('\n');
+            for (Map.Entry<String,String> attr : tfont.getAttributes().entrySet()) {
+                sb.append(attr.getKey()).append('=').append(attr.getValue()).append('\n');
+            }
+        }
+        sb.append('\n');
+        return sb.toString().getBytes(TextwriterDaemon.TRANSFER_CHARSET);
     }
 
     /**
@@ -230,13 +497,12 @@ public class FontCollection {
         GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
         String[] fontsArr = ge.getAvailableFontFamilyNames();
         
-        fontlock.writeLock().lock();
-        try {
-            if (clear) {
-                fonts.clear();
-            }
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            long version = current.version + 1;
+            HashMap<String, TaggedFont> updated = clear ? new HashMap<String, TaggedFont>() : new HashMap<String, TaggedFont>(current.fonts);
             for (String fnt : fontsArr) {
-                if (fonts.containsKey(fnt)) {
+                if (updated.containsKey(fnt)) {
                     continue;
                 }
                 Font font = new Font(fnt, Font.PLAIN, 1);
@@ -245,29 +511,133 @@ public class FontCollection {
                 if (fnt.contains("Unicode")) {
                     attrs.put(UNICODE_FONT, "1");
                 }
-                fonts.put(fnt, new TaggedFont(font, attrs));
+                TaggedFont tfont = new TaggedFont(font, fnt, attrs);
+                tfont.version = version;
+                updated.put(fnt, tfont);
+            }
+            snapshot = new Snapshot(Collections.unmodifiableMap(updated), version, clear ? version : current.removed);
+            if (clear) {
+                // the families may come back as different fonts
+                RenderCache.getInstance().invalidateAll();
+                GlyphAtlas.invalidateAll();
             }
         }
-        finally {
-            fontlock.writeLock().unlock();
+        if (clear && index != null) {
+            index.clear();
+            index.save();
+        }
+    }
+
+    /**
+     * One font file being loaded, and what was learned from it.
+     */
+    private static final class FontFile {
+        final File file;
+        // the .font.attributes file of the directory it is in, or null if it was loaded on its own
+        final File attrFile;
+        long attrModified = FontIndex.NO_ATTRIBUTES;
+        // the file's index entry, if it is current and the file need not be parsed
+        FontIndex.Entry entry;
+        // the attributes for each file name in its directory
+        Map<String, Map<String,String>> attrMap;
+
+        // what parsing it found, unless it failed
+        long length;
+        long modified;
+        String family;
+        Font font;
+        Map<String,String> attributes;
+        boolean failed;
+
+        FontFile(File file, File attrFile) {
+            this.file = file;
+            this.attrFile = attrFile;
+        }
+    }
+
+    /**
+     * Parses a range of font files, splitting it in half until each task
+     * holds a single file.
+     */
+    private static final class ParseTask extends RecursiveAction {
+        private final FontFile[] files;
+        private final int from;
+        private final int to;
+        private final FontLoadJob job;
+
+        ParseTask(FontFile[] files, int from, int to, FontLoadJob job) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.job = job;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(files, from, mid, job), new ParseTask(files, mid, to, job));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                FontFile ff = files[i];
+                if (ff.entry != null) {
+                    job.fileLoaded();
+                    continue;
+                }
+                try {
+                    parse(ff);
+                    job.fileLoaded();
+                }
+                catch (FontFormatException ffe) {
+                    logger.info("Cannot load font file " + ff.file.getPath() + ": " + ffe);
+                    ff.failed = true;
+                    job.fileFailed(ff.file, ffe);
+                }
+                catch (IOException ioe) {
+                    logger.info("Cannot load font file " + ff.file.getPath() + ": " + ioe);
+                    ff.failed = true;
+                    job.fileFailed(ff.file, ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the fonts recorded in the font index. Any font file that has
+     * changed since it was indexed is parsed again, and any that is gone or
+     * can no longer be loaded is dropped from the index.
+     */
+    private void loadIndex() {
+        List<FontIndex.Entry> entries = index.getAll();
+        FontFile[] files = new FontFile[entries.size()];
+        Set<File> dirs = new HashSet<File>();
+        for (int i = 0; i < files.length; i++) {
+            FontIndex.Entry entry = entries.get(i);
+            File fnt = new File(entry.path);
+            File attrFile = null;
+            if (entry.attributesModified != FontIndex.NO_ATTRIBUTES) {
+                attrFile = new File(fnt.getParentFile(), ".font.attributes");
+                if (watcher != null && dirs.add(fnt.getParentFile())) {
+                    // the index doesn't say whether it was loaded recursively
+                    watcher.register(fnt.getParentFile(), false);
+                }
+            }
+            files[i] = new FontFile(fnt, attrFile);
         }
+        FontLoadJob job = new FontLoadJob("font index");
+        load(files, job);
+        logger.config("Loaded " + files.length + " font files from the font index, of which "
+            + job.getErrors().size() + " were dropped");
     }
     
     /**
      * Adds any fonts in the given directory and any directories under it to the
      * list of fonts managed by this <code>FontCollection</code>.
      * @param dir the directory to search
+     * @see #loadFonts(File)
      */
     public void loadFontsRecursive(File dir) throws FontFormatException, IOException {
-        File[] dirList = dir.listFiles(new FileFilter() {
-            public boolean accept(File file) {
-                return file.isDirectory();
-            }
-        });
-        loadFonts(dir);
-        for (File d : dirList) {
-            loadFontsRecursive(d);
-        }
+        rethrow(load(dir, true));
     }
 
     private static final Pattern fontAttrLine = Pattern.compile("(.+?)=(\".*?\"|.*?)((?::[^:]+?)*)");
@@ -289,96 +659,453 @@ public class FontCollection {
      * value may be the empty string but the key cannot be.</p>
      * <p>As a special case, if the list of filenames is empty, all fonts loaded from the
      * directory will receive the attribute.</p>
+     * <p>The files are parsed in parallel while lookups carry on, and the fonts are
+     * then added all at once by publishing a new snapshot of the collection. A
+     * file that cannot be loaded doesn't stop the others from being added; the first
+     * such failure is thrown once they have been.</p>
+     * <p>If there is a font index, each font file is recorded in it, and a file that
+     * has not changed since it was recorded is not parsed again.</p>
+     * <p>Unless the <tt>textwriter.lazyFonts</tt> system property is {@code false},
+     * only the family name of each font is read when it is loaded, and the font
+     * itself is created the first time it is used. A file that is not a valid
+     * font may then be added, and fail only when it is used.</p>
+     * <p>If the <tt>textwriter.watchFonts</tt> system property is {@code true},
+     * a directory that fonts are loaded from is watched afterwards, and changes
+     * to the font files in it are applied to the collection as they happen.</p>
      * @param file the file to load or directory to search
-     * @return a <code>HashMap</code> containing status information for each font file in the
-     * given directory
      */
     public void loadFonts(File file) throws FontFormatException, IOException {
-        File[] list;
-        
-        Map<String, Map<String,String>> attrMap = new HashMap<String, Map<String,String>>();
-        
-        if (file.isDirectory()) {
-            File dirAttrFile = new File(file, ".font.attributes");
-            if (dirAttrFile.canRead()) { // parse the attributes file
+        rethrow(load(file, false));
+    }
+
+    private static void rethrow(FontLoadJob job) throws FontFormatException, IOException {
+        Exception failure = job.getFailure();
+        if (failure instanceof FontFormatException) {
+            throw (FontFormatException)failure;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        }
+    }
+
+    /**
+     * Loads the fonts from the given file or directory, as described in
+     * {@link #loadFonts(File)}, and returns when they have been added.
+     * @param recursive whether to load the fonts in subdirectories too
+     * @return the finished job, which holds any errors
+     */
+    FontLoadJob load(File file, boolean recursive) {
+        FontLoadJob job = new FontLoadJob(file.getPath());
+        load(scan(file, recursive), job);
+        return job;
+    }
+
+    /**
+     * Starts loading the fonts from the given file or directory in the
+     * background, as described in {@link #loadFonts(File)}.
+     * @param recursive whether to load the fonts in subdirectories too
+     * @return the job, which can also be looked up with {@link FontLoadJob#get(int)}
+     */
+    FontLoadJob startLoad(final File file, final boolean recursive) {
+        final FontLoadJob job = new FontLoadJob(file.getPath());
+        FontLoadJob.track(job);
+        BatchRenderRequest.pool.execute(new Runnable() {
+            public void run() {
                 try {
-                    BufferedReader br = new BufferedReader(new FileReader(dirAttrFile));
-                    for (String s = br.readLine(); s != null; s = br.readLine()) {
-                        Matcher m = fontAttrLine.matcher(s);
-                        if (!m.matches()) {
-                            continue;
-                        }
-                        String key = m.group(1);
-                        String value = m.group(2);
-                        String[] filenames;
-                        if ("".equals(m.group(3))) {
-                            filenames = new String[] {""};
-                        }
-                        else {
-                            filenames = m.group(3).substring(1).split(":");
-                        }
-                        for (String fn : filenames) {
-                            Map<String,String> attrs = attrMap.get(fn);
-                            if (attrs == null) {
-                                attrs = new HashMap<String,String>();
-                                attrMap.put(fn, attrs);
-                            }
-                            attrs.put(key, value);
-                        }
-                    }
+                    load(scan(file, recursive), job);
                 }
-                catch (IOException ioe) {
-                    logger.throwing("FontCollection", "loadFonts", ioe);
+                catch (RuntimeException re) {
+                    logger.throwing("FontCollection", "startLoad", re);
+                    job.finish(0);
+                }
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Lists the font files in the given file or directory, and starts
+     * watching each directory if fonts are watched.
+     */
+    private FontFile[] scan(File file, boolean recursive) {
+        List<FontFile> files = new ArrayList<FontFile>();
+        scan(file, recursive, files);
+        return files.toArray(new FontFile[files.size()]);
+    }
+
+    private void scan(File file, boolean recursive, List<FontFile> files) {
+        if (!file.isDirectory()) {
+            files.add(new FontFile(file, null));
+            return;
+        }
+        File attrFile = new File(file, ".font.attributes");
+        // list all TTF files
+        File[] list = file.listFiles(new FilenameFilter() {
+            public boolean accept(File directory, String filename) {
+                return filename.toLowerCase().endsWith(".ttf");
+            }
+        });
+        if (list == null) {
+            logger.info("Cannot list directory " + file.getPath());
+            return;
+        }
+        for (File fnt : list) {
+            files.add(new FontFile(fnt, attrFile));
+        }
+        if (watcher != null) {
+            watcher.register(file, recursive);
+        }
+        if (recursive) {
+            File[] dirList = file.listFiles(new FileFilter() {
+                public boolean accept(File f) {
+                    return f.isDirectory();
+                }
+            });
+            for (File d : dirList) {
+                scan(d, true, files);
+            }
+        }
+    }
+
+    /**
+     * Loads the given font files for a job, parsing them in parallel on the
+     * pool that batches are rendered on, adds the fonts to the collection, and
+     * updates the font index.
+     */
+    private void load(FontFile[] files, FontLoadJob job) {
+        int added = 0;
+        try {
+            job.setFiles(files.length);
+            prepare(files);
+            BatchRenderRequest.pool.invoke(new ParseTask(files, 0, files.length, job));
+            added = publish(files);
+            updateIndex(files);
+        }
+        finally {
+            job.finish(added);
+        }
+    }
+
+    /**
+     * Finds the font files that the font index has a current entry for, and
+     * reads the attributes of the directories of the others, each only once.
+     */
+    private void prepare(FontFile[] files) {
+        Map<File,Long> attrModified = new HashMap<File,Long>();
+        Map<File, Map<String, Map<String,String>>> attrMaps = new HashMap<File, Map<String, Map<String,String>>>();
+        for (FontFile ff : files) {
+            if (ff.attrFile != null) {
+                Long modified = attrModified.get(ff.attrFile);
+                if (modified == null) {
+                    modified = ff.attrFile.lastModified();
+                    attrModified.put(ff.attrFile, modified);
+                }
+                ff.attrModified = modified;
+            }
+            FontIndex.Entry entry = index == null ? null : index.get(ff.file.getPath());
+            if (entry != null && entry.isCurrent(ff.file, ff.attrModified)) {
+                ff.entry = entry;
+                continue;
+            }
+            if (ff.attrFile == null) {
+                ff.attrMap = Collections.emptyMap();
+                continue;
+            }
+            Map<String, Map<String,String>> attrMap = attrMaps.get(ff.attrFile);
+            if (attrMap == null) {
+                if (ff.attrFile.canRead()) {
+                    attrMap = readAttributes(ff.attrFile);
+                }
+                else {
+                    attrMap = Collections.emptyMap();
+                }
+                attrMaps.put(ff.attrFile, attrMap);
+            }
+            ff.attrMap = attrMap;
+        }
+    }
+
+    /**
+     * Reads the family name and works out the attributes of a font file.
+     * Unless lazy loading is turned off, only the family name is read from
+     * the file's <tt>name</tt> table, and the font is created when first used.
+     */
+    private static void parse(FontFile ff) throws FontFormatException, IOException {
+        File fnt = ff.file;
+        logger.finest("Loading file " + fnt.getPath());
+        ff.length = fnt.length();
+        ff.modified = fnt.lastModified();
+        String family = lazy ? TrueTypeNames.readFamily(fnt) : null;
+        if (family == null) {
+            ff.font = Font.createFont(Font.TRUETYPE_FONT, fnt);
+            family = ff.font.getFamily();
+        }
+        ff.family = family;
+        ff.attributes = attributesFor(fnt, family, ff.attrMap);
+    }
+
+    /**
+     * Adds the fonts from the loaded files to the collection, in order,
+     * skipping any family that is already there, and publishes them all in
+     * one new snapshot.
+     * @return the number of fonts added
+     */
+    private int publish(FontFile[] files) {
+        int added = 0;
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            long version = current.version + 1;
+            HashMap<String, TaggedFont> updated = new HashMap<String, TaggedFont>(current.fonts);
+            for (FontFile ff : files) {
+                if (ff.failed) {
+                    continue;
                 }
+                String family = ff.entry != null ? ff.entry.family : ff.family;
+                if (updated.containsKey(family)) {
+                    continue;
+                }
+                updated.put(family, newFont(ff, version));
+                added++;
+            }
+            if (added > 0) {
+                snapshot = new Snapshot(Collections.unmodifiableMap(updated), version, current.removed);
             }
-            // list all TTF files
-            list = file.listFiles(new FilenameFilter() {
+        }
+        return added;
+    }
+
+    // Makes the font for a loaded file, as added in the given version
+    private static TaggedFont newFont(FontFile ff, long version) {
+        TaggedFont tfont;
+        if (ff.entry != null) {
+            tfont = new TaggedFont(ff.entry.family, ff.file, ff.entry.attributes);
+        }
+        else if (ff.font != null) {
+            tfont = new TaggedFont(ff.font, ff.attributes);
+        }
+        else {
+            tfont = new TaggedFont(ff.family, ff.file, ff.attributes);
+        }
+        logger.finest("Adding font " + tfont.getFamily() + "; attributes=" + tfont.getAttributes());
+        tfont.version = version;
+        return tfont;
+    }
+
+    /**
+     * Brings the collection up to date with changes to font files in watched
+     * directories. Each of the given files that still exists is parsed again,
+     * and its font replaces the one that came from it before, if any; the font
+     * from each one that is gone is taken out. The cached renders and glyph
+     * atlases of every family that was replaced or taken out are dropped.
+     * @param files the font files that changed
+     * @param dirs directories whose font files may all have changed, or
+     *  which may be gone
+     * @see FontWatcher
+     */
+    void reload(Set<File> files, Set<File> dirs) {
+        Set<File> changed = new HashSet<File>(files);
+        for (File dir : dirs) {
+            File[] list = dir.listFiles(new FilenameFilter() {
                 public boolean accept(File directory, String filename) {
                     return filename.toLowerCase().endsWith(".ttf");
                 }
             });
+            if (list != null) {
+                changed.addAll(Arrays.asList(list));
+            }
+            // and the ones loaded from it before, in case they are gone
+            for (TaggedFont tfont : snapshot.fonts.values()) {
+                String source = tfont.getAttributes().get(SOURCE);
+                if (source != null && dir.equals(new File(source).getParentFile())) {
+                    changed.add(new File(source));
+                }
+            }
         }
-        else {
-            list = new File[] {file};
+        List<FontFile> present = new ArrayList<FontFile>();
+        List<String> gone = new ArrayList<String>();
+        for (File fnt : changed) {
+            if (fnt.isFile()) {
+                present.add(new FontFile(fnt, new File(fnt.getParentFile(), ".font.attributes")));
+            }
+            else {
+                gone.add(fnt.getPath());
+            }
+        }
+        FontFile[] parsed = present.toArray(new FontFile[present.size()]);
+        FontLoadJob job = new FontLoadJob("font changes");
+        Set<String> affected = Collections.emptySet();
+        try {
+            job.setFiles(parsed.length);
+            prepare(parsed);
+            BatchRenderRequest.pool.invoke(new ParseTask(parsed, 0, parsed.length, job));
+            affected = replace(changed, parsed);
+            updateIndex(parsed);
+            if (index != null && !gone.isEmpty()) {
+                for (String path : gone) {
+                    index.remove(path);
+                }
+                index.save();
+            }
         }
+        finally {
+            job.finish(affected.size());
+        }
+        for (String family : affected) {
+            RenderCache.getInstance().invalidate(family);
+            GlyphAtlas.invalidate(family);
+        }
+        if (!affected.isEmpty()) {
+            logger.config("Reloaded font families " + affected);
+        }
+    }
 
+    /**
+     * Takes out the fonts that came from the given files and adds the fonts
+     * from the ones that were parsed in their place, all in one new snapshot.
+     * A file whose index entry is current and whose font is still in the
+     * collection is left alone.
+     * @return the families that were added, replaced or taken out
+     */
+    private Set<String> replace(Set<File> changed, FontFile[] files) {
+        Set<String> affected = new HashSet<String>();
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            long version = current.version + 1;
+            Set<String> paths = new HashSet<String>();
+            for (File fnt : changed) {
+                paths.add(fnt.getPath());
+            }
+            // the family that came from each changed file
+            Map<String,String> owners = new HashMap<String,String>();
+            for (TaggedFont tfont : current.fonts.values()) {
+                String source = tfont.getAttributes().get(SOURCE);
+                if (source != null && paths.contains(source) && !tfont.getAttributes().containsKey(SYSTEM_FONT)) {
+                    owners.put(source, tfont.getFamily());
+                }
+            }
+            List<FontFile> added = new ArrayList<FontFile>();
+            for (FontFile ff : files) {
+                String path = ff.file.getPath();
+                if (ff.entry != null && ff.entry.family.equals(owners.get(path))) {
+                    owners.remove(path);
+                }
+                else if (!ff.failed) {
+                    added.add(ff);
+                }
+            }
+            HashMap<String, TaggedFont> updated = new HashMap<String, TaggedFont>(current.fonts);
+            Set<String> removed = new HashSet<String>(owners.values());
+            for (String family : removed) {
+                logger.finest("Removing font " + family);
+                updated.remove(family);
+            }
+            for (FontFile ff : added) {
+                String family = ff.entry != null ? ff.entry.family : ff.family;
+                if (updated.containsKey(family)) {
+                    continue;
+                }
+                updated.put(family, newFont(ff, version));
+                affected.add(family);
+            }
+            // families that were replaced rather than taken out show up as changes
+            removed.removeAll(affected);
+            affected.addAll(owners.values());
+            if (!affected.isEmpty()) {
+                snapshot = new Snapshot(Collections.unmodifiableMap(updated), version, removed.isEmpty() ? current.removed : version);
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Records the files that were parsed in the font index, drops the ones
+     * that failed, and saves the index if it changed.
+     */
+    private void updateIndex(FontFile[] files) {
+        if (index == null) {
+            return;
+        }
+        boolean changed = false;
+        for (FontFile ff : files) {
+            if (ff.failed) {
+                index.remove(ff.file.getPath());
+                changed = true;
+            }
+            else if (ff.entry == null) {
+                index.put(new FontIndex.Entry(ff.file.getPath(), ff.length, ff.modified, ff.attrModified,
+                    ff.family, Collections.unmodifiableMap(ff.attributes)));
+                changed = true;
+            }
+        }
+        if (changed) {
+            index.save();
+        }
+    }
+
+    /**
+     * Determines the attributes of a font loaded from the given file.
+     * @param attrMap the attributes for each file name, as returned by
+     *  {@link #readAttributes(File)}
+     */
+    private static Map<String,String> attributesFor(File fnt, String family, Map<String, Map<String,String>> attrMap) {
+        Map<String,String> fontAttrs = new HashMap<String,String>();
+        Map<String,String> fileAttrs = attrMap.get(fnt.getName());
+        if (fileAttrs != null) {
+            fontAttrs.putAll(fileAttrs);
+        }
         Map<String,String> genericAttrs = attrMap.get("");
-        if (genericAttrs == null) {
-            genericAttrs = new HashMap<String,String>();
+        if (genericAttrs != null) {
+            fontAttrs.putAll(genericAttrs);
+        }
+        if (family.contains("Unicode")) {
+            fontAttrs.put(UNICODE_FONT, "1");
         }
-        fontlock.writeLock().lock();
+        fontAttrs.put(SOURCE, fnt.getPath());
+        return fontAttrs;
+    }
+
+    /**
+     * Parses a <tt>.font.attributes</tt> file.
+     * @return the attributes for each file name listed, with the attributes
+     *  for all fonts under the empty string
+     * @see #loadFonts(File)
+     */
+    private static Map<String, Map<String,String>> readAttributes(File dirAttrFile) {
+        Map<String, Map<String,String>> attrMap = new HashMap<String, Map<String,String>>();
         try {
-            for (File fnt : list) {
-                logger.finest("Loading file " + fnt.getPath());
-                // TODO: does it make sense to catch exceptions in here?
-                Font font = Font.createFont(Font.TRUETYPE_FONT, fnt);
-                if (!fonts.containsKey(font.getFamily())) {
-                    // if the font was not already loaded, determine its attributes
-                    Map<String,String> fontAttrs = attrMap.get(fnt.getName());
-                    if (fontAttrs == null) {
-                        if (font.getFamily().contains("Unicode")) {
-                            fontAttrs = new HashMap<String,String>();
-                            fontAttrs.put(UNICODE_FONT, "1");
-                            fontAttrs.putAll(genericAttrs);
-                        }
-                        else {
-                            fontAttrs = genericAttrs;
-                        }
+            BufferedReader br = new BufferedReader(new FileReader(dirAttrFile));
+            try {
+                for (String s = br.readLine(); s != null; s = br.readLine()) {
+                    Matcher m = fontAttrLine.matcher(s);
+                    if (!m.matches()) {
+                        continue;
+                    }
+                    String key = m.group(1);
+                    String value = m.group(2);
+                    String[] filenames;
+                    if ("".equals(m.group(3))) {
+                        filenames = new String[] {""};
                     }
                     else {
-                        fontAttrs.putAll(genericAttrs);
-                        if (font.getFamily().contains("Unicode")) {
-                            fontAttrs.put(UNICODE_FONT, "1");
+                        filenames = m.group(3).substring(1).split(":");
+                    }
+                    for (String fn : filenames) {
+                        Map<String,String> attrs = attrMap.get(fn);
+                        if (attrs == null) {
+                            attrs = new HashMap<String,String>();
+                            attrMap.put(fn, attrs);
                         }
+                        attrs.put(key, value);
                     }
-                    fontAttrs.put(SOURCE, fnt.getPath());
-                    logger.finest("Adding font " + font.getFamily() + "; attributes=" + fontAttrs);
-                    fonts.put(font.getFamily(), new TaggedFont(font, fontAttrs));
                 }
             }
+            finally {
+                br.close();
+            }
         }
-        finally {
-            fontlock.writeLock().unlock();
+        catch (IOException ioe) {
+            logger.throwing("FontCollection", "readAttributes", ioe);
         }
+        return attrMap;
     }
 }
@@ -0,0 +1,248 @@
+/* FontIndex.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Remembers what was learned from each font file the {@link FontCollection}
+ * has parsed, so that a restarted daemon can get its fonts back without
+ * parsing them again.
+ *
+ * <p>The index is kept in the file named by the <tt>textwriter.fontIndex</tt>
+ * system property. It is rewritten whenever fonts are loaded, in file order,
+ * as</p>
+ * <pre>
+ * u32 MAGIC
+ * u32 VERSION
+ * u32 n, then n entries:
+ *   UTF path
+ *   u64 file length
+ *   u64 file modification time
+ *   u64 modification time of the .font.attributes file the attributes were
+ *       read from, or NO_ATTRIBUTES if the font was loaded on its own
+ *   UTF family
+ *   u32 m, then m pairs of UTF key, UTF value: the attributes
+ * </pre>
+ * <p>An entry is only trusted while the length and modification time of its
+ * font file, and of its attributes file, are what they were when the font was
+ * parsed. Any other font file is parsed as usual.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class FontIndex {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    private static final int MAGIC = 0x54574649;
+    private static final int VERSION = 1;
+
+    /** The attributes modification time of a font that was not loaded from a directory */
+    static final long NO_ATTRIBUTES = -1;
+
+    /**
+     * What is known about one font file.
+     */
+    static final class Entry {
+        final String path;
+        final long length;
+        final long modified;
+        final long attributesModified;
+        final String family;
+        final Map<String,String> attributes;
+
+        Entry(String path, long length, long modified, long attributesModified, String family, Map<String,String> attributes) {
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+            this.attributesModified = attributesModified;
+            this.family = family;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Returns {@code true} if this entry still describes the given font
+         * file, given the current modification time of its attributes file.
+         */
+        boolean isCurrent(File file, long attributesModified) {
+            return this.attributesModified == attributesModified
+                && length == file.length() && modified == file.lastModified();
+        }
+    }
+
+    private final File file;
+    // entries by path, in the order the files were first parsed
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+    private FontIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the index named by the <tt>textwriter.fontIndex</tt> system
+     * property, with the entries in it already read, or {@code null} if the
+     * property is not set.
+     */
+    static FontIndex open() {
+        String path = System.getProperty("textwriter.fontIndex");
+        if (path == null) {
+            return null;
+        }
+        logger.config("Using font index " + path);
+        FontIndex index = new FontIndex(new File(path));
+        try {
+            index.read();
+        }
+        catch (FileNotFoundException fnfe) {
+            logger.config("No font index at " + path + " yet");
+        }
+        catch (IOException ioe) {
+            // it will be rewritten from scratch
+            logger.warning("Ignoring unreadable font index " + path + ": " + ioe);
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a font index");
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String path = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                long attributesModified = in.readLong();
+                String family = in.readUTF();
+                int m = in.readInt();
+                Map<String,String> attributes = new HashMap<String,String>();
+                for (int j = 0; j < m; j++) {
+                    String key = in.readUTF();
+                    attributes.put(key, in.readUTF());
+                }
+                entries.put(path, new Entry(path, length, modified, attributesModified, family, Collections.unmodifiableMap(attributes)));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the entry for the font file at the given path, or {@code null}
+     * if it has not been parsed.
+     */
+    synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Returns all entries, in the order their files were first parsed.
+     */
+    synchronized List<Entry> getAll() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Adds or replaces the entry for a font file.
+     */
+    synchronized void put(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    /**
+     * Forgets the font file at the given path.
+     */
+    synchronized void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * Forgets all font files.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Writes the index to its file. The index is written to a temporary file
+     * first and moved into place, so a crash never leaves a partial index
+     * behind. A failure to write is logged and otherwise ignored, since the
+     * fonts will just be parsed again next time.
+     */
+    synchronized void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.path);
+                    out.writeLong(entry.length);
+                    out.writeLong(entry.modified);
+                    out.writeLong(entry.attributesModified);
+                    out.writeUTF(entry.family);
+                    out.writeInt(entry.attributes.size());
+                    for (Map.Entry<String,String> attr : entry.attributes.entrySet()) {
+                        out.writeUTF(attr.getKey());
+                        out.writeUTF(attr.getValue());
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.finer("Saved " + entries.size() + " fonts to the font index");
+        }
+        catch (IOException ioe) {
+            logger.throwing("FontIndex", "save", ioe);
+            tmp.delete();
+        }
+    }
+}
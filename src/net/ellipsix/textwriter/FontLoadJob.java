@@ -0,0 +1,178 @@
+/* FontLoadJob.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of loading the fonts from a file or directory into the
+ * {@link FontCollection}.
+ *
+ * <p>A file that cannot be loaded is recorded as an error, and the rest of
+ * the files are loaded regardless. A job started in the background with
+ * {@link FontCollection#startLoad(File, boolean)} can be looked up by its ID
+ * with {@link #get(int)} while it runs and afterwards; only the last
+ * {@value #MAX_JOBS} such jobs are kept.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class FontLoadJob {
+    /** How many background jobs are remembered */
+    static final int MAX_JOBS = 64;
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static final LinkedHashMap<Integer,FontLoadJob> jobs = new LinkedHashMap<Integer,FontLoadJob>() {
+        protected boolean removeEldestEntry(Map.Entry<Integer,FontLoadJob> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+
+    private final int id = nextId.getAndIncrement();
+    private final String path;
+    // -1 until the files to load have been found
+    private volatile int files = -1;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private volatile int added;
+    private volatile boolean done;
+    // guarded by itself
+    private final List<String> errors = new ArrayList<String>();
+    private Exception failure;
+
+    /**
+     * Creates a job to load the fonts from the given path.
+     */
+    FontLoadJob(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Remembers a background job so that it can be looked up by its ID.
+     */
+    static void track(FontLoadJob job) {
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+    }
+
+    /**
+     * Returns the background job with the given ID, or {@code null} if there
+     * is none or it has been forgotten.
+     */
+    static FontLoadJob get(int id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the first exception thrown while loading a file, or
+     * {@code null} if every file was loaded.
+     */
+    Exception getFailure() {
+        synchronized (errors) {
+            return failure;
+        }
+    }
+
+    /**
+     * Returns one line for each file that could not be loaded, giving its path
+     * and what went wrong.
+     */
+    List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<String>(errors);
+        }
+    }
+
+    void setFiles(int files) {
+        this.files = files;
+    }
+
+    void fileLoaded() {
+        loaded.incrementAndGet();
+    }
+
+    void fileFailed(File file, Exception e) {
+        loaded.incrementAndGet();
+        synchronized (errors) {
+            if (failure == null) {
+                failure = e;
+            }
+            errors.add(file.getPath() + ": " + String.valueOf(e.getMessage()).replace('\n', ' '));
+        }
+    }
+
+    /**
+     * Marks the job as done.
+     * @param added how many fonts were added to the collection
+     */
+    void finish(int added) {
+        this.added = added;
+        done = true;
+    }
+
+    /**
+     * Writes the state of the job as <tt>key=value</tt> lines, followed by a
+     * blank line. The <tt>state</tt> is <tt>scanning</tt> while the files to
+     * load are being found, then <tt>loading</tt>, then <tt>done</tt>; each
+     * file that could not be loaded gets an <tt>error</tt> line.
+     */
+    void writeStatus(OutputStream out) throws IOException {
+        BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, TextwriterDaemon.TRANSFER_CHARSET));
+        // read done first, so that a finished job is reported with its final counts
+        boolean finished = done;
+        int total = files;
+        w.write("id=" + id + "\n");
+        w.write("path=" + path + "\n");
+        w.write("state=" + (finished ? "done" : total < 0 ? "scanning" : "loading") + "\n");
+        w.write("files=" + Math.max(total, 0) + "\n");
+        w.write("loaded=" + loaded.get() + "\n");
+        w.write("added=" + (finished ? added : 0) + "\n");
+        for (String error : getErrors()) {
+            w.write("error=" + error + "\n");
+        }
+        w.write("\n");
+        w.flush();
+    }
+}
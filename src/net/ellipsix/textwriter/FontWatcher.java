@@ -0,0 +1,248 @@
+/* FontWatcher.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directories that fonts were loaded from, and brings the
+ * {@link FontCollection} up to date when font files in them change.
+ *
+ * <p>Watching is turned on by setting the <tt>textwriter.watchFonts</tt>
+ * system property to <tt>true</tt>. Changes usually come in bursts, such as a
+ * whole family being copied in, so once a change is seen, more are collected
+ * until none has come for <tt>textwriter.fontWatchDelay</tt> milliseconds, by
+ * default {@value #DEFAULT_DELAY}, and then they are all applied together
+ * with {@link FontCollection#reload(Set, Set)}:</p>
+ * <ul>
+ * <li>a <tt>.ttf</tt> file that was added or modified is parsed and its font
+ * added, or replaces the font that came from that file before</li>
+ * <li>the font from a <tt>.ttf</tt> file that was deleted is taken out</li>
+ * <li>a change to <tt>.font.attributes</tt> reloads every font in its
+ * directory</li>
+ * <li>a new subdirectory of a directory that was loaded recursively is loaded
+ * and watched</li>
+ * </ul>
+ * <p>If the operating system drops events, the whole directory is rescanned.
+ * Only directories are watched; a font loaded on its own is not.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class FontWatcher implements Runnable {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    /** The default quiet time, in milliseconds, that ends a burst of changes */
+    static final long DEFAULT_DELAY = 500;
+    private static final long delay = Long.getLong("textwriter.fontWatchDelay", DEFAULT_DELAY);
+    // a burst that goes on for this many delays is applied anyway
+    private static final int MAX_DELAYS = 20;
+
+    private static final String ATTRIBUTES_FILE = ".font.attributes";
+
+    /**
+     * A directory being watched.
+     */
+    private static final class Watched {
+        final Path dir;
+        // whether new subdirectories are loaded too
+        final boolean recursive;
+
+        Watched(Path dir, boolean recursive) {
+            this.dir = dir;
+            this.recursive = recursive;
+        }
+    }
+
+    private final FontCollection fc;
+    private final WatchService service;
+    // guarded by itself
+    private final Map<WatchKey,Watched> watched = new HashMap<WatchKey,Watched>();
+
+    private FontWatcher(FontCollection fc, WatchService service) {
+        this.fc = fc;
+        this.service = service;
+    }
+
+    /**
+     * Creates a watcher for the given collection, if watching is turned on.
+     * Directories can be registered straight away, but nothing is applied to
+     * the collection until {@link #start()} is called.
+     * @return the watcher, or {@code null} if watching is turned off or not
+     *  possible
+     */
+    static FontWatcher create(FontCollection fc) {
+        if (!Boolean.getBoolean("textwriter.watchFonts")) {
+            return null;
+        }
+        try {
+            logger.config("Watching font directories for changes");
+            return new FontWatcher(fc, FileSystems.getDefault().newWatchService());
+        }
+        catch (IOException ioe) {
+            logger.throwing("FontWatcher", "create", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Starts applying changes on a daemon thread of its own.
+     */
+    void start() {
+        Thread thread = new Thread(this, "textwriter-font-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching a directory that fonts were loaded from. Registering a
+     * directory again does no harm.
+     * @param recursive whether the directory's subdirectories were loaded too
+     */
+    void register(File dir, boolean recursive) {
+        Path path = dir.toPath();
+        try {
+            WatchKey key = path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            synchronized (watched) {
+                Watched old = watched.get(key);
+                if (old == null || (recursive && !old.recursive)) {
+                    logger.finer("Watching font directory " + path);
+                    watched.put(key, new Watched(path, recursive));
+                }
+            }
+        }
+        catch (IOException ioe) {
+            logger.info("Cannot watch font directory " + path + ": " + ioe);
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                // each changed path, with the directory it was seen in
+                Map<Path,Watched> changes = new LinkedHashMap<Path,Watched>();
+                take(service.take(), changes);
+                for (int i = 0; i < MAX_DELAYS; i++) {
+                    WatchKey key = service.poll(delay, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    take(key, changes);
+                }
+                try {
+                    apply(changes);
+                }
+                catch (RuntimeException re) {
+                    logger.throwing("FontWatcher", "run", re);
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            logger.fine("Font watcher interrupted");
+        }
+        catch (ClosedWatchServiceException cwse) {
+            logger.fine("Font watcher closed");
+        }
+    }
+
+    private void take(WatchKey key, Map<Path,Watched> changes) {
+        Watched w;
+        synchronized (watched) {
+            w = watched.get(key);
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (w == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, so look at the whole directory
+                changes.put(w.dir, w);
+            }
+            else {
+                changes.put(w.dir.resolve((Path)event.context()), w);
+            }
+        }
+        if (!key.reset()) {
+            // the directory is gone
+            synchronized (watched) {
+                watched.remove(key);
+            }
+        }
+    }
+
+    private void apply(Map<Path,Watched> changes) {
+        Set<File> files = new LinkedHashSet<File>();
+        Set<File> dirs = new LinkedHashSet<File>();
+        List<File> newDirs = new ArrayList<File>();
+        for (Map.Entry<Path,Watched> change : changes.entrySet()) {
+            Path path = change.getKey();
+            Watched w = change.getValue();
+            File file = path.toFile();
+            String name = file.getName();
+            if (path.equals(w.dir) || name.equals(ATTRIBUTES_FILE)) {
+                dirs.add(w.dir.toFile());
+            }
+            else if (name.toLowerCase().endsWith(".ttf")) {
+                files.add(file);
+            }
+            else if (file.isDirectory()) {
+                if (w.recursive) {
+                    newDirs.add(file);
+                }
+            }
+            else if (!file.exists()) {
+                // it may have been a directory with fonts in it
+                dirs.add(file);
+            }
+        }
+        if (!files.isEmpty() || !dirs.isEmpty()) {
+            logger.fine("Reloading " + files.size() + " changed font files and " + dirs.size() + " directories");
+            fc.reload(files, dirs);
+        }
+        for (File dir : newDirs) {
+            logger.fine("Loading new font directory " + dir.getPath());
+            fc.load(dir, true);
+        }
+    }
+}
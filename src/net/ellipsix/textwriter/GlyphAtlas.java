@@ -0,0 +1,387 @@
+/* GlyphAtlas.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The antialiased glyphs of one derived font, rasterized once each, from
+ * which short strings are rendered by copying and colorizing glyphs instead
+ * of laying out and rasterizing the outlines again.
+ *
+ * <p>Only simple text is rendered this way: at most {@value #MAX_LENGTH}
+ * characters, at no more than {@value #MAX_FONT_SIZE} points, none of which need complex layout, are control characters or
+ * are missing from the font. That covers labels and headings in Latin text.
+ * Everything else is left to {@link java.awt.font.TextLayout}. Glyphs are
+ * placed one after another at their advances, which is what a
+ * {@code TextLayout} does for such text, since kerning and ligatures are off
+ * unless a font's attributes ask for them.</p>
+ *
+ * <p>There is one atlas per derived font. Together they hold at most
+ * <tt>textwriter.atlasBytes</tt> bytes of glyph coverage, by default
+ * {@value #DEFAULT_BUDGET}, and the atlases of the least recently used fonts
+ * are dropped to stay within that. Once a single font's atlas fills the
+ * budget, as one with many different characters can, its further glyphs are
+ * rasterized for each render and not kept.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class GlyphAtlas {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    /** The longest text that is rendered from an atlas */
+    static final int MAX_LENGTH = 32;
+    public static final long DEFAULT_BUDGET = 8 << 20;
+    private static final long budget = Long.getLong("textwriter.atlasBytes", DEFAULT_BUDGET);
+    // a rough allowance for each glyph's object and map entry
+    private static final int GLYPH_OVERHEAD = 64;
+
+    /** The largest font size, in points, that gets an atlas */
+    static final float MAX_FONT_SIZE = 128;
+    private static final FontRenderContext frc = RenderRequest.FRC;
+
+    // the atlases of all fonts in order of use, guarded by itself
+    private static final LinkedHashMap<Font, GlyphAtlas> atlases = new LinkedHashMap<Font, GlyphAtlas>(16, 0.75f, true);
+    // the bytes held by all the atlases in the map and by glyphs being added
+    // to them, so that the budget can be checked without adding them up
+    private static final AtomicLong totalBytes = new AtomicLong();
+
+    /**
+     * One rasterized glyph: its coverage mask and where to put it relative to
+     * the pen position on the baseline.
+     */
+    private static final class Glyph {
+        final byte[] coverage;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final int advance;
+
+        Glyph(byte[] coverage, int x, int y, int width, int height, int advance) {
+            this.coverage = coverage;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.advance = advance;
+        }
+    }
+
+    private final Font font;
+    private final ConcurrentHashMap<Character, Glyph> glyphs = new ConcurrentHashMap<Character, Glyph>();
+    // the bytes held by this atlas, or DROPPED once it has been taken out of the map
+    private final AtomicLong bytes = new AtomicLong();
+    private static final long DROPPED = -1;
+
+    private GlyphAtlas(Font font) {
+        this.font = font;
+    }
+
+    /**
+     * Renders simple text from the atlas of the given font.
+     * @param pooled whether to draw into an image from the {@link RasterPool}
+     * @return the image, or {@code null} if the text has to be laid out
+     */
+    static BufferedImage render(String text, Font font, Color bgColor, Color fgColor, boolean pooled) {
+        if (budget <= 0 || font == null || !isSimple(text, font)) {
+            return null;
+        }
+        return forFont(font).render(text, bgColor, fgColor, pooled);
+    }
+
+    /**
+     * Renders simple text from the atlas of the given font as a coverage
+     * mask.
+     * @return the mask, or {@code null} if the text has to be laid out
+     */
+    static CoverageMask renderMask(String text, Font font) {
+        if (budget <= 0 || font == null || !isSimple(text, font)) {
+            return null;
+        }
+        return forFont(font).renderMask(text);
+    }
+
+    /**
+     * Drops the atlases of every font in the given family, named as it is in
+     * the {@link FontCollection}.
+     */
+    static void invalidate(String family) {
+        synchronized (atlases) {
+            Iterator<GlyphAtlas> it = atlases.values().iterator();
+            while (it.hasNext()) {
+                GlyphAtlas atlas = it.next();
+                if (family.equals(FontCollection.FamilyFont.familyOf(atlas.font))) {
+                    atlas.drop();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every atlas.
+     */
+    static void invalidateAll() {
+        synchronized (atlases) {
+            for (GlyphAtlas atlas : atlases.values()) {
+                atlas.drop();
+            }
+            atlases.clear();
+        }
+    }
+
+    private static boolean isSimple(String text, Font font) {
+        int n = text.length();
+        if (n == 0 || n > MAX_LENGTH || font.getSize2D() > MAX_FONT_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (Character.isISOControl(c) || Character.isSurrogate(c)) {
+                return false;
+            }
+        }
+        char[] chars = text.toCharArray();
+        return !Font.textRequiresLayout(chars, 0, n) && font.canDisplayUpTo(chars, 0, n) == -1;
+    }
+
+    /**
+     * Returns the atlas of the given font, creating it if need be. A font
+     * that has been replaced in the {@link FontCollection} gets an atlas that
+     * is used once and not kept.
+     */
+    private static GlyphAtlas forFont(Font font) {
+        synchronized (atlases) {
+            GlyphAtlas atlas = atlases.get(font);
+            if (atlas == null) {
+                atlas = new GlyphAtlas(font);
+                if (!FontCollection.FamilyFont.isCurrent(font)) {
+                    atlas.drop();
+                    return atlas;
+                }
+                logger.finer("Creating glyph atlas for " + font);
+                atlases.put(font, atlas);
+            }
+            return atlas;
+        }
+    }
+
+    /**
+     * Takes this atlas's bytes out of the total, as it is taken out of the
+     * map. Glyphs added to it afterwards aren't counted.
+     */
+    private void drop() {
+        totalBytes.addAndGet(-bytes.getAndSet(DROPPED));
+    }
+
+    /**
+     * Counts the given number of bytes against the budget, first dropping the
+     * atlases of other fonts, least recently used first, if there isn't room.
+     * @return {@code false} if there isn't room even then, in which case
+     *  nothing is counted
+     */
+    private boolean reserve(int size) {
+        if (totalBytes.addAndGet(size) <= budget) {
+            return true;
+        }
+        synchronized (atlases) {
+            Iterator<GlyphAtlas> it = atlases.values().iterator();
+            while (totalBytes.get() > budget && it.hasNext()) {
+                GlyphAtlas eldest = it.next();
+                if (eldest == this) {
+                    continue;
+                }
+                logger.finer("Dropping glyph atlas for " + eldest.font);
+                eldest.drop();
+                it.remove();
+            }
+        }
+        if (totalBytes.get() <= budget) {
+            return true;
+        }
+        totalBytes.addAndGet(-size);
+        return false;
+    }
+
+    private Glyph getGlyph(char c) {
+        Glyph g = glyphs.get(c);
+        if (g != null) {
+            return g;
+        }
+        g = rasterize(c);
+        int size = g.coverage.length + GLYPH_OVERHEAD;
+        if (!reserve(size)) {
+            // this atlas has the whole budget; use the glyph without keeping it
+            return g;
+        }
+        Glyph existing = glyphs.putIfAbsent(c, g);
+        if (existing != null) {
+            totalBytes.addAndGet(-size);
+            return existing;
+        }
+        for (long b = bytes.get(); ; b = bytes.get()) {
+            if (b == DROPPED) {
+                // drop() has already taken this atlas out of the total
+                totalBytes.addAndGet(-size);
+                break;
+            }
+            if (bytes.compareAndSet(b, b + size)) {
+                break;
+            }
+        }
+        return g;
+    }
+
+    private Glyph rasterize(char c) {
+        GlyphVector gv = font.createGlyphVector(frc, new char[] {c});
+        Rectangle r = gv.getPixelBounds(frc, 0, 0);
+        int advance = Math.round((float)gv.getGlyphPosition(1).getX());
+        if (r.isEmpty()) {
+            return new Glyph(new byte[0], 0, 0, 0, 0, advance);
+        }
+        BufferedImage mask = new BufferedImage(r.width, r.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = mask.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.drawGlyphVector(gv, -r.x, -r.y);
+        g.dispose();
+        byte[] coverage = ((DataBufferByte)mask.getRaster().getDataBuffer()).getData();
+        return new Glyph(coverage, r.x, r.y, r.width, r.height, advance);
+    }
+
+    /**
+     * Looks up the glyphs of a line of text and finds the box they cover,
+     * relative to the pen's starting point on the baseline.
+     * @param box receives the left, top, right and bottom of the box and the
+     *  total advance
+     * @return the glyphs, or {@code null} if none of them are visible
+     */
+    private Glyph[] place(String text, int[] box) {
+        int n = text.length();
+        Glyph[] line = new Glyph[n];
+        int pen = 0;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            Glyph g = getGlyph(text.charAt(i));
+            line[i] = g;
+            if (g.width > 0) {
+                minX = Math.min(minX, pen + g.x);
+                maxX = Math.max(maxX, pen + g.x + g.width);
+                minY = Math.min(minY, g.y);
+                maxY = Math.max(maxY, g.y + g.height);
+            }
+            pen += g.advance;
+        }
+        if (minX > maxX) {
+            // nothing visible; let TextLayout decide what that looks like
+            return null;
+        }
+        box[0] = minX;
+        box[1] = minY;
+        box[2] = maxX;
+        box[3] = maxY;
+        box[4] = pen;
+        return line;
+    }
+
+    private CoverageMask renderMask(String text) {
+        int[] box = new int[5];
+        Glyph[] line = place(text, box);
+        if (line == null) {
+            return null;
+        }
+        int width = box[2] - box[0];
+        int height = box[3] - box[1];
+        if ((long)width * height > RenderRequest.MAX_PIXELS) {
+            return null;
+        }
+        byte[] mask = new byte[width * height];
+        int pen = 0;
+        for (Glyph g : line) {
+            int ox = pen + g.x - box[0];
+            int oy = g.y - box[1];
+            for (int gy = 0; gy < g.height; gy++) {
+                int row = (oy + gy) * width + ox;
+                for (int gx = 0; gx < g.width; gx++) {
+                    int cov = g.coverage[gy * g.width + gx] & 0xff;
+                    if (cov == 0) {
+                        continue;
+                    }
+                    // where glyphs overlap, one covers part of what the other leaves
+                    int d = mask[row + gx] & 0xff;
+                    mask[row + gx] = (byte)((cov * 255 + d * (255 - cov) + 127) / 255);
+                }
+            }
+            pen += g.advance;
+        }
+        return new CoverageMask(mask, width, height, -box[0], -box[1], box[4]);
+    }
+
+    private BufferedImage render(String text, Color bgColor, Color fgColor, boolean pooled) {
+        int[] box = new int[5];
+        Glyph[] line = place(text, box);
+        if (line == null) {
+            return null;
+        }
+        int minX = box[0];
+        int minY = box[1];
+        int width = box[2] - minX;
+        int height = box[3] - minY;
+        if ((long)width * height > RenderRequest.MAX_PIXELS) {
+            return null;
+        }
+        BufferedImage image = pooled ? RasterPool.createImage(width, height)
+                : new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        // a pooled array may be longer than the image, so only fill what it uses
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        CoverageMask.fill(data, width * height, bgColor);
+        // draw each glyph over it
+        int pen = 0;
+        for (Glyph g : line) {
+            CoverageMask.blend(data, width, g.coverage, g.width, g.height, pen + g.x - minX, g.y - minY, fgColor);
+            pen += g.advance;
+        }
+        return image;
+    }
+}
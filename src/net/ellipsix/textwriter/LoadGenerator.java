@@ -0,0 +1,472 @@
+/* LoadGenerator.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A load generator that speaks the daemon's wire protocol and reports the
+ * throughput and latency it sees.
+ *
+ * <p>It runs either closed-loop, where each of a fixed number of connections
+ * sends its next request as soon as the last one is answered, or open-loop,
+ * where requests are issued at a fixed rate whether or not earlier ones have
+ * been answered. In open-loop mode, latency is measured from when a request
+ * was due to be sent, so time spent waiting for a free connection counts
+ * against the daemon.</p>
+ *
+ * <p>The requests are either a synthetic mix of single-line renders or the
+ * contents of a file written by {@link RequestCapture}, which are sent over
+ * and over in order. A replayed capture can also be sent once at the pace it
+ * was recorded.</p>
+ * <pre>
+ * LoadGenerator [-host localhost] [-port 47251] [-connections 4] [-duration 30]
+ *               [-rate requests-per-second | -rate recorded]
+ *               [-replay capture-file | -font "DejaVu Sans" -size 24]
+ * </pre>
+ * <p>Without <tt>-rate</tt> the run is closed-loop. The report is written to
+ * standard output as <tt>key=value</tt> lines.</p>
+ *
+ * @author David Zaslavsky
+ */
+public class LoadGenerator {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    private static final String RECORDED = "recorded";
+    // text lengths of the synthetic requests
+    private static final int[] SYNTHETIC_LENGTHS = {4, 12, 32, 80};
+
+    private final String host;
+    private final int port;
+    private final List<RequestCapture.Record> requests;
+    private final Metrics.Histogram latency = new Metrics.Histogram("latency");
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    // the index of the next request to send, for the loops that cycle through them
+    private final AtomicInteger next = new AtomicInteger();
+
+    public LoadGenerator(String host, int port, List<RequestCapture.Record> requests) {
+        this.host = host;
+        this.port = port;
+        this.requests = requests;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = TextwriterDaemon.DEFAULT_PORT;
+        int connections = 4;
+        int duration = 30;
+        String rate = null;
+        String replay = null;
+        String font = "DejaVu Sans";
+        int size = 24;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String opt = args[i];
+                String value = args[++i];
+                if ("-host".equals(opt)) {
+                    host = value;
+                }
+                else if ("-port".equals(opt)) {
+                    port = Integer.parseInt(value);
+                }
+                else if ("-connections".equals(opt)) {
+                    connections = Integer.parseInt(value);
+                }
+                else if ("-duration".equals(opt)) {
+                    duration = Integer.parseInt(value);
+                }
+                else if ("-rate".equals(opt)) {
+                    rate = value;
+                }
+                else if ("-replay".equals(opt)) {
+                    replay = value;
+                }
+                else if ("-font".equals(opt)) {
+                    font = value;
+                }
+                else if ("-size".equals(opt)) {
+                    size = Integer.parseInt(value);
+                }
+                else {
+                    throw new IllegalArgumentException(opt);
+                }
+            }
+        }
+        catch (RuntimeException re) {
+            System.err.println("Usage: LoadGenerator [-host host] [-port port] [-connections n] [-duration seconds]"
+                    + " [-rate rps|recorded] [-replay file | -font name -size points]");
+            System.exit(2);
+        }
+        if (RECORDED.equals(rate) && replay == null) {
+            System.err.println("-rate recorded needs a capture to -replay");
+            System.exit(2);
+        }
+
+        List<RequestCapture.Record> requests = replay == null ? syntheticRequests(font, size) : readCapture(replay);
+        if (requests.isEmpty()) {
+            System.err.println("No requests to send");
+            System.exit(1);
+        }
+        LoadGenerator gen = new LoadGenerator(host, port, requests);
+        long elapsed;
+        if (rate == null) {
+            elapsed = gen.runClosedLoop(connections, TimeUnit.SECONDS.toNanos(duration));
+        }
+        else {
+            double rps = RECORDED.equals(rate) ? 0 : Double.parseDouble(rate);
+            elapsed = gen.runOpenLoop(connections, rps, TimeUnit.SECONDS.toNanos(duration));
+        }
+        gen.report(new PrintWriter(System.out), elapsed);
+    }
+
+    /**
+     * Builds one render request of each synthetic text length, in the
+     * original protocol.
+     */
+    static List<RequestCapture.Record> syntheticRequests(String font, int size) {
+        String sample = "Textwriter renders text in any font as a PNG image. ";
+        List<RequestCapture.Record> requests = new ArrayList<RequestCapture.Record>();
+        for (int length : SYNTHETIC_LENGTHS) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < length) {
+                text.append(sample);
+            }
+            text.setLength(length);
+            // the size, style flags and line count are single characters
+            String request = (char)TextwriterDaemon.RENDER_MODE + font + "\n" + (char)size + (char)0 + (char)0
+                    + "ffffff00\n000000ff\n" + (char)1 + text + "\n";
+            requests.add(new RequestCapture.Record(0, RequestFramer.PROTOCOL_V1,
+                    request.getBytes(TextwriterDaemon.TRANSFER_CHARSET)));
+        }
+        return requests;
+    }
+
+    static List<RequestCapture.Record> readCapture(String path) throws IOException {
+        List<RequestCapture.Record> requests = new ArrayList<RequestCapture.Record>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            for (RequestCapture.Record r = RequestCapture.read(in); r != null; r = RequestCapture.read(in)) {
+                requests.add(r);
+            }
+        }
+        finally {
+            in.close();
+        }
+        logger.config("Read " + requests.size() + " requests from " + path);
+        return requests;
+    }
+
+    /**
+     * Sends requests from each connection one after another until the time
+     * is up.
+     * @return the nanoseconds the run took
+     */
+    long runClosedLoop(int connections, final long durationNanos) throws InterruptedException {
+        final long start = System.nanoTime();
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Client client = new Client();
+                    while (System.nanoTime() - start < durationNanos) {
+                        RequestCapture.Record r = requests.get(Math.floorMod(next.getAndIncrement(), requests.size()));
+                        long sent = System.nanoTime();
+                        if (client.exchange(r)) {
+                            latency.recordSince(sent);
+                        }
+                    }
+                    client.close();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * A request that is due to be sent at a given time.
+     */
+    private static final class Scheduled {
+        final RequestCapture.Record request;
+        final long due;
+
+        Scheduled(RequestCapture.Record request, long due) {
+            this.request = request;
+            this.due = due;
+        }
+    }
+
+    /**
+     * Issues requests at a fixed rate, or at the times they were recorded,
+     * and sends each on the first free connection.
+     * @param rps requests per second, or 0 to send each request once at the
+     *  time it was recorded
+     * @return the nanoseconds the run took
+     */
+    long runOpenLoop(int connections, double rps, long durationNanos) throws InterruptedException {
+        final BlockingQueue<Scheduled> queue = new LinkedBlockingQueue<Scheduled>();
+        final Scheduled end = new Scheduled(null, 0);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Client client = new Client();
+                    try {
+                        for (Scheduled s = queue.take(); s != end; s = queue.take()) {
+                            if (client.exchange(s.request)) {
+                                latency.recordSince(s.due);
+                            }
+                        }
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    client.close();
+                }
+            });
+            threads[i].start();
+        }
+
+        long start = System.nanoTime();
+        long first = requests.get(0).time;
+        for (long i = 0; ; i++) {
+            long offset;
+            RequestCapture.Record r;
+            if (rps > 0) {
+                offset = (long)(i * 1e9 / rps);
+                r = requests.get((int)(i % requests.size()));
+            }
+            else {
+                if (i >= requests.size()) {
+                    break;
+                }
+                r = requests.get((int)i);
+                offset = r.time - first;
+            }
+            if (offset >= durationNanos) {
+                break;
+            }
+            long due = start + offset;
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            queue.put(new Scheduled(r, due));
+        }
+        for (int i = 0; i < connections; i++) {
+            queue.put(end);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    void report(PrintWriter out, long elapsedNanos) throws IOException {
+        long n = completed.sum();
+        double seconds = elapsedNanos / 1e9;
+        out.println("requests=" + n);
+        out.println("errors=" + failed.sum());
+        out.println("duration_ms=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        out.println("throughput_rps=" + Math.round(n / seconds));
+        latency.write(out);
+        out.flush();
+    }
+
+    /**
+     * One thread's connections to the daemon, opened when first needed. A
+     * connection can only speak one protocol, so there is one for each.
+     */
+    private class Client {
+        private final Socket[] sockets = new Socket[RequestFramer.PROTOCOL_V2 + 1];
+        private final DataInputStream[] ins = new DataInputStream[sockets.length];
+        private final OutputStream[] outs = new OutputStream[sockets.length];
+
+        /**
+         * Sends a request and reads the whole response. A connection that
+         * fails is closed and reopened for the next request.
+         * @return {@code true} if the request succeeded
+         */
+        boolean exchange(RequestCapture.Record r) {
+            int protocol = r.protocol;
+            try {
+                if (sockets[protocol] == null) {
+                    connect(protocol);
+                }
+                outs[protocol].write(r.request);
+                outs[protocol].flush();
+                boolean ok = readResponse(ins[protocol], protocol, r.request);
+                (ok ? completed : failed).increment();
+                return ok;
+            }
+            catch (IOException ioe) {
+                logger.throwing("LoadGenerator", "exchange", ioe);
+                failed.increment();
+                close(protocol);
+                return false;
+            }
+        }
+
+        private void connect(int protocol) throws IOException {
+            Socket sock = new Socket(host, port);
+            sock.setTcpNoDelay(true);
+            sockets[protocol] = sock;
+            ins[protocol] = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            outs[protocol] = new BufferedOutputStream(sock.getOutputStream());
+            if (protocol == RequestFramer.PROTOCOL_V2) {
+                outs[protocol].write(BinaryProtocol.MAGIC);
+            }
+        }
+
+        private void close(int protocol) {
+            if (sockets[protocol] != null) {
+                try {
+                    sockets[protocol].close();
+                }
+                catch (IOException ioe) {
+                    logger.throwing("LoadGenerator", "close", ioe);
+                }
+                sockets[protocol] = null;
+            }
+        }
+
+        void close() {
+            for (int p = 0; p < sockets.length; p++) {
+                close(p);
+            }
+        }
+    }
+
+    /**
+     * Reads the response to a request, the layout of which depends on the
+     * request's mode.
+     * @return {@code false} if the daemon reported that the request failed
+     */
+    static boolean readResponse(DataInputStream in, int protocol, byte[] request) throws IOException {
+        if (protocol == RequestFramer.PROTOCOL_V2) {
+            in.readInt(); // request ID
+            int status = in.readUnsignedByte();
+            skipFully(in, in.readInt());
+            return status == BinaryProtocol.STATUS_OK;
+        }
+        switch (request[0]) {
+            case TextwriterDaemon.RENDER_MODE:
+            case TextwriterDaemon.PARAGRAPH_MODE:
+                skipFully(in, in.readInt());
+                return true;
+            case TextwriterDaemon.TAGGED_RENDER_MODE:
+                in.readInt(); // request ID
+                skipFully(in, in.readInt());
+                return true;
+            case TextwriterDaemon.STREAM_RENDER_MODE:
+                for (int n = in.readInt(); n > 0; n = in.readInt()) {
+                    skipFully(in, n);
+                }
+                return true;
+            case TextwriterDaemon.BATCH_RENDER_MODE:
+                int count = in.readInt();
+                if (isSprite(request)) {
+                    skipFully(in, 16L * count); // the position of each string
+                    skipFully(in, in.readInt());
+                }
+                else {
+                    while (count-- > 0) {
+                        skipFully(in, in.readInt());
+                    }
+                }
+                return true;
+            case TextwriterDaemon.MASK_MODE:
+                skipFully(in, 21); // the size, placement and encoding
+                skipFully(in, in.readInt());
+                return true;
+            case TextwriterDaemon.FONT_ADD_ASYNC_MODE:
+                in.readInt(); // job ID
+                return true;
+            case TextwriterDaemon.FONT_LIST_MODE:
+            case TextwriterDaemon.STATS_MODE:
+            case TextwriterDaemon.FONT_JOB_MODE:
+            case TextwriterDaemon.FONT_LIST_SINCE_MODE:
+                // a listing, after any header lines, ends with a blank line
+                int prev = '\n';
+                for (int b = in.read(); !(b == '\n' && prev == '\n'); b = in.read()) {
+                    if (b < 0) {
+                        throw new IOException("Connection closed in the middle of a listing");
+                    }
+                    prev = b;
+                }
+                return true;
+            case TextwriterDaemon.FONT_ADD_MODE:
+                return in.readUnsignedByte() == 0;
+            default:
+                // the daemon doesn't answer an invalid mode
+                return false;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+            if (skipped == 0) {
+                in.readByte(); // throws at the end of the stream
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Returns {@code true} if a batch render request asks for a sprite sheet.
+     */
+    private static boolean isSprite(byte[] request) {
+        ByteBuffer buf = ByteBuffer.wrap(request);
+        int p = RequestFramer.skipLine(buf, 1, request.length); // font name
+        p = RequestFramer.skipChars(buf, p, request.length, 3); // size, bold, italic
+        p = RequestFramer.skipLine(buf, p, request.length); // background
+        p = RequestFramer.skipLine(buf, p, request.length); // foreground
+        return p >= 0 && p < request.length && request[p] != 0;
+    }
+}
@@ -0,0 +1,240 @@
+/* Metrics.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters and per-stage latency histograms for the daemon.
+ *
+ * <p>Everything here is safe to update from any thread without locking, and
+ * recording a value allocates nothing, so the metrics are always on. Counters
+ * are {@link LongAdder}s, which spread contended updates over several cells.
+ * Latencies go into {@link Histogram}s with a fixed set of buckets.</p>
+ *
+ * <p>{@link #writeStats(OutputStream)} reports everything in the same
+ * <tt>key=value</tt> line format as the font list, ending with a blank
+ * line.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class Metrics {
+    /**
+     * A histogram of durations in nanoseconds. Each power of two is split
+     * into four buckets, so a reported quantile is within 25% of the true
+     * value, and the exact maximum is tracked separately.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // enough buckets for any non-negative long
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records one duration.
+         * @param nanos the duration in nanoseconds
+         */
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucket(nanos));
+            long m = max.get();
+            while (nanos > m && !max.compareAndSet(m, nanos)) {
+                m = max.get();
+            }
+        }
+
+        /**
+         * Records the time elapsed since the given {@link System#nanoTime()}.
+         * @return the current {@link System#nanoTime()}, so that consecutive
+         *  stages can be timed from one reading to the next
+         */
+        long recordSince(long start) {
+            long now = System.nanoTime();
+            record(now - start);
+            return now;
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int)v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int)(v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        // the largest value that falls in the given bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+        }
+
+        /**
+         * Writes the count, p50, p90, p99 and max of this histogram, with the
+         * durations in microseconds.
+         */
+        void write(Writer w) throws IOException {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long m = max.get();
+            w.write(name + ".count=" + total + "\n");
+            w.write(name + ".p50_us=" + micros(Math.min(quantile(snapshot, total, 0.50), m)) + "\n");
+            w.write(name + ".p90_us=" + micros(Math.min(quantile(snapshot, total, 0.90), m)) + "\n");
+            w.write(name + ".p99_us=" + micros(Math.min(quantile(snapshot, total, 0.99), m)) + "\n");
+            w.write(name + ".max_us=" + micros(m) + "\n");
+        }
+
+        private static long quantile(long[] snapshot, long total, double q) {
+            long rank = (long)Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static String micros(long nanos) {
+            return String.valueOf(nanos / 1000);
+        }
+    }
+
+    /**
+     * An output stream that counts the bytes passed through it and times each
+     * write as part of {@link Metrics#SOCKET_WRITE}. It should be placed
+     * directly on top of a socket's stream, below any buffering.
+     */
+    static final class MeteredOutputStream extends FilterOutputStream {
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            SOCKET_WRITE.recordSince(start);
+            bytesOut.increment();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            SOCKET_WRITE.recordSince(start);
+            bytesOut.add(len);
+        }
+    }
+
+    /** Parsing a render request, including the font lookup */
+    static final Histogram PARSE = new Histogram("parse");
+    /** {@link FontCollection#getFont(String, int, float)} */
+    static final Histogram FONT_LOOKUP = new Histogram("font_lookup");
+    /** Constructing the {@link java.awt.font.TextLayout} of a render */
+    static final Histogram LAYOUT = new Histogram("layout");
+    /** Drawing the text of a render */
+    static final Histogram RASTERIZE = new Histogram("rasterize");
+    /** Encoding a rendered image */
+    static final Histogram ENCODE = new Histogram("encode");
+    /** Writing to a socket */
+    static final Histogram SOCKET_WRITE = new Histogram("socket_write");
+
+    private static final Histogram[] histograms = {PARSE, FONT_LOOKUP, LAYOUT, RASTERIZE, ENCODE, SOCKET_WRITE};
+
+    /** Requests handled, of any mode */
+    static final LongAdder requests = new LongAdder();
+    /** Bytes written to sockets */
+    static final LongAdder bytesOut = new LongAdder();
+    /** Total area of all rendered images, in pixels */
+    static final LongAdder pixels = new LongAdder();
+    /** Currently open connections */
+    static final LongAdder connections = new LongAdder();
+    /** Renders answered from the {@link RenderCache} */
+    static final LongAdder cacheHits = new LongAdder();
+    /** Renders looked up in the {@link RenderCache} and not found */
+    static final LongAdder cacheMisses = new LongAdder();
+    /** Entries evicted from the {@link RenderCache} to stay within its budget */
+    static final LongAdder cacheEvictions = new LongAdder();
+    /** Images drawn into an array from a {@link RasterPool} */
+    static final LongAdder rasterPoolHits = new LongAdder();
+    /** Images that needed a newly allocated raster array */
+    static final LongAdder rasterPoolMisses = new LongAdder();
+    /** Bytes of raster arrays waiting in the pools */
+    static final LongAdder rasterPoolBytes = new LongAdder();
+
+    private Metrics() {}
+
+    /**
+     * Writes all counters and histograms as <tt>key=value</tt> lines, followed
+     * by a blank line.
+     */
+    static void writeStats(OutputStream out) throws IOException {
+        BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, TextwriterDaemon.TRANSFER_CHARSET));
+        w.write("requests=" + requests.sum() + "\n");
+        w.write("bytes_out=" + bytesOut.sum() + "\n");
+        w.write("pixels=" + pixels.sum() + "\n");
+        w.write("queue_depth=" + TextwriterDaemon.renderQueueDepth() + "\n");
+        w.write("connections=" + connections.sum() + "\n");
+        w.write("cache_hits=" + cacheHits.sum() + "\n");
+        w.write("cache_misses=" + cacheMisses.sum() + "\n");
+        w.write("cache_evictions=" + cacheEvictions.sum() + "\n");
+        w.write("cache_bytes=" + RenderCache.getInstance().size() + "\n");
+        w.write("raster_pool_hits=" + rasterPoolHits.sum() + "\n");
+        w.write("raster_pool_misses=" + rasterPoolMisses.sum() + "\n");
+        w.write("raster_pool_bytes=" + rasterPoolBytes.sum() + "\n");
+        for (Histogram h : histograms) {
+            h.write(w);
+        }
+        w.write("\n");
+        w.flush();
+    }
+}
@@ -0,0 +1,375 @@
+/* ParagraphLayout.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.LineMetrics;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Text laid out as a block of lines. The text is split into paragraphs at
+ * line breaks, each paragraph is optionally wrapped to a maximum width with a
+ * {@link LineBreakMeasurer}, and the lines are stacked with the given line
+ * spacing and aligned to the left, the center or the right of the block.
+ *
+ * <p>The lines of a paragraph are laid out the first time the paragraph is
+ * needed in a given font and width, and kept for reuse in a cache of up to
+ * <tt>textwriter.layoutCacheSize</tt> paragraphs, so a block that shares most
+ * of its paragraphs with an earlier one only lays out the rest. Lines are
+ * rasterized in parallel on the {@link java.util.concurrent.ForkJoinPool}
+ * that batches use, each into its own coverage mask, and the masks are then
+ * combined into one {@link CoverageMask} that just fits the ink of the whole
+ * block.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class ParagraphLayout {
+    static final int ALIGN_LEFT = 0;
+    static final int ALIGN_CENTER = 1;
+    static final int ALIGN_RIGHT = 2;
+
+    /** Line spacing as a percentage of each line's height */
+    static final int SINGLE_SPACING = 100;
+    /** The widest line spacing, which larger values are capped to */
+    static final int MAX_LINE_SPACING = 100 * SINGLE_SPACING;
+
+    /**
+     * Identifies the lines of a paragraph by its text, the very {@link Font}
+     * object it was laid out in, as for the single-line layout cache, and the
+     * width it was wrapped to.
+     */
+    private static final class ParagraphKey {
+        private final String text;
+        private final Font font;
+        private final int maxWidth;
+
+        ParagraphKey(String text, Font font, int maxWidth) {
+            this.text = text;
+            this.font = font;
+            this.maxWidth = maxWidth;
+        }
+
+        public int hashCode() {
+            return (31 * text.hashCode() + System.identityHashCode(font)) * 31 + maxWidth;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ParagraphKey)) {
+                return false;
+            }
+            ParagraphKey k = (ParagraphKey)o;
+            return font == k.font && maxWidth == k.maxWidth && text.equals(k.text);
+        }
+    }
+
+    // The lines of the most recently used paragraphs
+    private static final Map<ParagraphKey,TextLayout[]> paragraphs = Collections.synchronizedMap(
+            new LinkedHashMap<ParagraphKey,TextLayout[]>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<ParagraphKey,TextLayout[]> eldest) {
+                    return size() > RenderRequest.layoutCacheSize;
+                }
+            });
+
+    // one entry per line; a blank line has no layout
+    private final TextLayout[] lines;
+    // where each line's baseline starts
+    private final float[] xs;
+    private final float[] ys;
+    // the ink of all the lines, relative to the start of the first baseline
+    private final Rectangle2D bounds;
+    private final float width;
+
+    private ParagraphLayout(TextLayout[] lines, float[] xs, float[] ys, Rectangle2D bounds, float width) {
+        this.lines = lines;
+        this.xs = xs;
+        this.ys = ys;
+        this.bounds = bounds;
+        this.width = width;
+    }
+
+    /**
+     * Lays out a block of text.
+     * @param maxWidth the width in pixels to wrap paragraphs to, or 0 to break
+     *  lines only at line breaks
+     * @param alignment {@link #ALIGN_LEFT}, {@link #ALIGN_CENTER} or
+     *  {@link #ALIGN_RIGHT}
+     * @param spacing the distance from one baseline to the next, as a
+     *  percentage of the height of a line
+     */
+    static ParagraphLayout layout(String text, Font font, int maxWidth, int alignment, int spacing) {
+        long start = System.nanoTime();
+        List<TextLayout> lines = new ArrayList<TextLayout>();
+        for (String paragraph : text.split("\n", -1)) {
+            TextLayout[] wrapped = getLines(paragraph, font, maxWidth);
+            if (wrapped.length == 0) {
+                lines.add(null);
+            }
+            for (TextLayout line : wrapped) {
+                lines.add(line);
+            }
+        }
+        int n = lines.size();
+        TextLayout[] layouts = lines.toArray(new TextLayout[n]);
+
+        // stack the lines
+        LineMetrics blank = font.getLineMetrics(" ", RenderRequest.FRC);
+        float[] xs = new float[n];
+        float[] ys = new float[n];
+        float width = maxWidth;
+        float y = 0;
+        float below = 0;
+        for (int i = 0; i < n; i++) {
+            TextLayout line = layouts[i];
+            float ascent = line != null ? line.getAscent() : blank.getAscent();
+            if (i > 0) {
+                y += (below + ascent) * spacing / 100f;
+            }
+            ys[i] = y;
+            below = line != null ? line.getDescent() + line.getLeading() : blank.getDescent() + blank.getLeading();
+            if (maxWidth <= 0 && line != null) {
+                width = Math.max(width, line.getVisibleAdvance());
+            }
+        }
+        Rectangle2D bounds = null;
+        for (int i = 0; i < n; i++) {
+            TextLayout line = layouts[i];
+            if (line == null) {
+                continue;
+            }
+            float slack = width - line.getVisibleAdvance();
+            xs[i] = alignment == ALIGN_CENTER ? slack / 2 : alignment == ALIGN_RIGHT ? slack : 0;
+            Rectangle2D ink = line.getBounds();
+            if (ink.isEmpty()) {
+                continue;
+            }
+            ink = new Rectangle2D.Double(ink.getX() + xs[i], ink.getY() + ys[i], ink.getWidth(), ink.getHeight());
+            if (bounds == null) {
+                bounds = ink;
+            }
+            else {
+                bounds.add(ink);
+            }
+        }
+        if (bounds == null) {
+            // nothing visible
+            bounds = new Rectangle2D.Double();
+        }
+        Metrics.LAYOUT.recordSince(start);
+        return new ParagraphLayout(layouts, xs, ys, bounds, width);
+    }
+
+    /**
+     * Returns the lines of one paragraph, laying them out only if they aren't
+     * in the cache.
+     */
+    private static TextLayout[] getLines(String paragraph, Font font, int maxWidth) {
+        if (paragraph.isEmpty()) {
+            return new TextLayout[0];
+        }
+        if (maxWidth <= 0) {
+            // a single line, which shares the cache of single-line renders
+            return new TextLayout[] {RenderRequest.getLayout(paragraph, font, RenderRequest.FRC)};
+        }
+        ParagraphKey key = new ParagraphKey(paragraph, font, maxWidth);
+        TextLayout[] lines = RenderRequest.layoutCacheSize > 0 ? paragraphs.get(key) : null;
+        if (lines == null) {
+            AttributedString as = new AttributedString(paragraph, Collections.singletonMap(TextAttribute.FONT, font));
+            LineBreakMeasurer measurer = new LineBreakMeasurer(as.getIterator(), RenderRequest.FRC);
+            List<TextLayout> wrapped = new ArrayList<TextLayout>();
+            while (measurer.getPosition() < paragraph.length()) {
+                wrapped.add(measurer.nextLayout(maxWidth));
+            }
+            lines = wrapped.toArray(new TextLayout[wrapped.size()]);
+            if (RenderRequest.layoutCacheSize > 0) {
+                paragraphs.put(key, lines);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the ink of all the lines, relative to the start of the first
+     * baseline.
+     */
+    Rectangle2D getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Rasterizes the block into a coverage mask that just fits its ink.
+     * @throws RenderRequest.TooLargeException if the mask would have more
+     *  than {@link RenderRequest#MAX_PIXELS} pixels
+     */
+    CoverageMask render() {
+        long start = System.nanoTime();
+        long w = (long)(bounds.getWidth() + 1);
+        long h = (long)(bounds.getHeight() + 1);
+        if (w * h > RenderRequest.MAX_PIXELS) {
+            throw new RenderRequest.TooLargeException(w, h);
+        }
+        int width = (int)w;
+        int height = (int)h;
+        LineMask[] masks = new LineMask[lines.length];
+        if (lines.length > 1) {
+            BatchRenderRequest.pool.invoke(new LineTask(masks, 0, lines.length, width, height));
+        }
+        else {
+            rasterize(masks, 0, width, height);
+        }
+
+        // lines can overlap when the spacing is tight, so each one covers part
+        // of what the others leave uncovered
+        byte[] coverage = new byte[width * height];
+        for (LineMask m : masks) {
+            if (m == null) {
+                continue;
+            }
+            for (int my = 0; my < m.height; my++) {
+                int row = (m.y + my) * width + m.x;
+                for (int mx = 0; mx < m.width; mx++) {
+                    int c = m.coverage[my * m.width + mx] & 0xff;
+                    if (c == 0) {
+                        continue;
+                    }
+                    int d = coverage[row + mx] & 0xff;
+                    coverage[row + mx] = (byte)(d == 0 ? c : (c * 255 + d * (255 - c) + 127) / 255);
+                }
+            }
+        }
+        Metrics.RASTERIZE.recordSince(start);
+        Metrics.pixels.add(w * h);
+        return new CoverageMask(coverage, width, height, (int)Math.round(-bounds.getX()),
+                (int)Math.round(-bounds.getY()), Math.round(this.width));
+    }
+
+    /**
+     * Renders the block in the given colors.
+     * @param pooled whether to draw into an image from the current thread's
+     *  {@link RasterPool}
+     */
+    BufferedImage render(Color bgColor, Color fgColor, boolean pooled) {
+        return render().toImage(bgColor, fgColor, pooled);
+    }
+
+    /**
+     * The coverage of one line, and where it goes in the block's mask.
+     */
+    private static final class LineMask {
+        final byte[] coverage;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+
+        LineMask(byte[] coverage, int x, int y, int width, int height) {
+            this.coverage = coverage;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Rasterizes one line into its own mask, drawn at its exact position in
+     * the block so that it lines up with the others to the subpixel.
+     */
+    private void rasterize(LineMask[] masks, int i, int blockWidth, int blockHeight) {
+        TextLayout line = lines[i];
+        if (line == null) {
+            return;
+        }
+        Rectangle2D ink = line.getBounds();
+        if (ink.isEmpty()) {
+            return;
+        }
+        double x = xs[i] - bounds.getX();
+        double y = ys[i] - bounds.getY();
+        int left = Math.max(0, (int)Math.floor(x + ink.getMinX()));
+        int top = Math.max(0, (int)Math.floor(y + ink.getMinY()));
+        int width = Math.min(blockWidth, (int)Math.ceil(x + ink.getMaxX()) + 1) - left;
+        int height = Math.min(blockHeight, (int)Math.ceil(y + ink.getMaxY()) + 1) - top;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        line.draw(g, (float)(x - left), (float)(y - top));
+        g.dispose();
+        byte[] coverage = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        masks[i] = new LineMask(coverage, left, top, width, height);
+    }
+
+    /**
+     * Rasterizes a range of lines, splitting it in half until each task holds
+     * a single line.
+     */
+    private class LineTask extends RecursiveAction {
+        private final LineMask[] masks;
+        private final int from;
+        private final int to;
+        private final int blockWidth;
+        private final int blockHeight;
+
+        LineTask(LineMask[] masks, int from, int to, int blockWidth, int blockHeight) {
+            this.masks = masks;
+            this.from = from;
+            this.to = to;
+            this.blockWidth = blockWidth;
+            this.blockHeight = blockHeight;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LineTask(masks, from, mid, blockWidth, blockHeight),
+                        new LineTask(masks, mid, to, blockWidth, blockHeight));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                rasterize(masks, i, blockWidth, blockHeight);
+            }
+        }
+    }
+}
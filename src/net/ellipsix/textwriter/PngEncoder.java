@@ -0,0 +1,650 @@
+/* PngEncoder.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+/**
+ * A PNG encoder for the images that {@link RenderRequest#renderText} makes.
+ *
+ * <p>Rendered text only holds the background, the foreground and the
+ * antialiased blends between them, which is rarely more than a few dozen
+ * distinct colors. When an image has at most 256 colors, it is written as an
+ * 8-bit indexed PNG with a <tt>tRNS</tt> chunk for the alpha of each palette
+ * entry, which is a quarter of the raw data of the RGBA image ImageIO
+ * writes. Otherwise it is written as 8-bit RGBA. Either way the output is
+ * plain PNG. Images that aren't {@link BufferedImage#TYPE_4BYTE_ABGR} are
+ * passed on to {@link ImageIO}.</p>
+ *
+ * <p>The deflate level is set with the <tt>textwriter.pngLevel</tt> system
+ * property, by default {@value #DEFAULT_LEVEL}, and the row filter with
+ * <tt>textwriter.pngFilter</tt>: <tt>none</tt>, <tt>sub</tt>, <tt>up</tt>,
+ * <tt>average</tt>, <tt>paeth</tt>, or <tt>adaptive</tt> to pick the filter
+ * for each row that is likely to compress best. By default indexed images are
+ * not filtered, which suits palette data, and RGBA images are filtered
+ * adaptively. Each thread keeps its own {@link Deflater} and work
+ * buffers.</p>
+ *
+ * <p>An image of at least <tt>textwriter.parallelEncodePixels</tt> pixels, by
+ * default {@value #DEFAULT_PARALLEL_PIXELS}, is compressed on all processors
+ * at once, the way <tt>pigz</tt> does it. The filtered scanlines are split into
+ * bands of about {@value #BAND_SIZE} bytes, and each band is deflated on its own
+ * on the {@link java.util.concurrent.ForkJoinPool} that batches use, primed
+ * with the 32 KiB of data before it as a preset dictionary and ended with a
+ * sync flush, so that the pieces join up into one zlib stream. That costs a
+ * little compression at each band boundary.</p>
+ *
+ * @author David Zaslavsky
+ */
+public final class PngEncoder {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    public static final int DEFAULT_LEVEL = 4;
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+    private static final int FILTER_ADAPTIVE = 5;
+    // means "the default for the color type"
+    private static final int FILTER_DEFAULT = -1;
+
+    static final int level = Integer.getInteger("textwriter.pngLevel", DEFAULT_LEVEL);
+    private static final int filter = parseFilter(System.getProperty("textwriter.pngFilter"));
+
+    public static final int DEFAULT_PARALLEL_PIXELS = 1 << 19;
+    private static final int parallelPixels = Integer.getInteger("textwriter.parallelEncodePixels", DEFAULT_PARALLEL_PIXELS);
+    // the amount of filtered data deflated in each band
+    private static final int BAND_SIZE = 1 << 17;
+    // the deflate window, and so the most of the previous band that's worth
+    // giving a band as its dictionary
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int MAX_PALETTE = 256;
+    // the largest IDAT chunk written
+    private static final int IDAT_SIZE = 1 << 15;
+
+    private static final ThreadLocal<PngEncoder> encoders = new ThreadLocal<PngEncoder>() {
+        protected PngEncoder initialValue() {
+            return new PngEncoder();
+        }
+    };
+    // raw deflaters for bands, with no zlib header or trailer
+    private static final ThreadLocal<Deflater> bandDeflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(level, true);
+        }
+    };
+
+    private final Deflater deflater = new Deflater(level);
+    // set while an image is being encoded; a thread waiting on the bands of
+    // a parallel encode may pick up another encode in the meantime
+    private boolean busy;
+    private final CRC32 crc = new CRC32();
+    private final byte[] idat = new byte[IDAT_SIZE];
+    private int idatCount;
+    // the palette being collected, as RGBA, and an open-addressed table
+    // mapping colors to palette index + 1
+    private final int[] palette = new int[MAX_PALETTE];
+    private final int[] tableColors = new int[4 * MAX_PALETTE];
+    private final short[] tableIndices = new short[4 * MAX_PALETTE];
+    // the palette index of each pixel
+    private byte[] indices = new byte[0];
+    private final Scanlines scanlines = new Scanlines();
+
+    private PngEncoder() {}
+
+    private static int parseFilter(String name) {
+        if (name == null) {
+            return FILTER_DEFAULT;
+        }
+        String[] names = {"none", "sub", "up", "average", "paeth", "adaptive"};
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        logger.warning("Unknown PNG filter " + name + ", using the default");
+        return FILTER_DEFAULT;
+    }
+
+    /**
+     * Writes an image as PNG.
+     */
+    public static void write(BufferedImage image, OutputStream out) throws IOException {
+        WritableRaster raster = image.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        if (image.getType() != BufferedImage.TYPE_4BYTE_ABGR || raster.getParent() != null
+                || !(sm instanceof PixelInterleavedSampleModel)
+                || ((PixelInterleavedSampleModel)sm).getScanlineStride() != 4 * image.getWidth()
+                || raster.getDataBuffer().getOffset() != 0) {
+            ImageIO.write(image, "PNG", out);
+            return;
+        }
+        PngEncoder encoder = encoders.get();
+        if (encoder.busy) {
+            encoder = new PngEncoder();
+        }
+        encoder.busy = true;
+        try {
+            encoder.encode(image, out);
+        }
+        finally {
+            encoder.busy = false;
+        }
+    }
+
+    private void encode(BufferedImage image, OutputStream out) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        int colors = collectPalette(data, width * height);
+        boolean indexed = colors > 0;
+        if (indexed) {
+            sortPalette(colors, width * height);
+        }
+
+        out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        TextwriterDaemon.putInt(ihdr, 0, width);
+        TextwriterDaemon.putInt(ihdr, 4, height);
+        ihdr[8] = 8; // bit depth
+        ihdr[9] = (byte)(indexed ? COLOR_TYPE_INDEXED : COLOR_TYPE_RGBA);
+        // compression, filter and interlace methods are all 0
+        writeChunk(out, "IHDR", ihdr, ihdr.length);
+        if (indexed) {
+            writePalette(out, colors);
+        }
+
+        int rowFilter = filter != FILTER_DEFAULT ? filter : indexed ? FILTER_NONE : FILTER_ADAPTIVE;
+        byte[] pixels = indexed ? indices : null;
+        if (parallelPixels > 0 && (long)width * height >= parallelPixels
+                && BatchRenderRequest.pool.getParallelism() > 1) {
+            deflateParallel(out, data, pixels, width, height, rowFilter);
+        }
+        else {
+            deflateSequential(out, data, pixels, width, height, rowFilter);
+        }
+        writeChunk(out, "IEND", idat, 0);
+    }
+
+    private void deflateSequential(OutputStream out, byte[] data, byte[] pixels, int width, int height, int rowFilter)
+            throws IOException {
+        scanlines.start(data, pixels, width, rowFilter, 0);
+        deflater.reset();
+        idatCount = 0;
+        for (int y = 0; y < height; y++) {
+            deflater.setInput(scanlines.next(y), 0, scanlines.length());
+            while (!deflater.needsInput()) {
+                deflate(out);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(out);
+        }
+        if (idatCount > 0) {
+            writeChunk(out, "IDAT", idat, idatCount);
+        }
+    }
+
+    private void deflateParallel(OutputStream out, byte[] data, byte[] pixels, int width, int height, int rowFilter)
+            throws IOException {
+        int stride = width * (pixels != null ? 1 : 4) + 1;
+        int bandRows = Math.max(1, BAND_SIZE / stride);
+        Bands bands = new Bands(data, pixels, width, height, rowFilter, bandRows);
+        BatchRenderRequest.pool.invoke(new BandTask(bands, 0, bands.count));
+
+        // the zlib header, claiming the same compression level as Deflater would
+        int flevel = level < 0 || level == 6 ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        byte[] first = bands.deflated[0];
+        first[0] = (byte)cmf;
+        first[1] = (byte)flg;
+        // and the trailer, the checksum of all the bands together
+        long adler = 1;
+        for (int i = 0; i < bands.count; i++) {
+            adler = combineAdler32(adler, bands.adler[i], bands.inputLength[i]);
+        }
+        int last = bands.count - 1;
+        TextwriterDaemon.putInt(bands.deflated[last], bands.deflatedLength[last], (int)adler);
+        bands.deflatedLength[last] += 4;
+        for (int i = 0; i < bands.count; i++) {
+            writeChunk(out, "IDAT", bands.deflated[i], bands.deflatedLength[i]);
+        }
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two pieces of data from the checksum
+     * of each, as zlib's <tt>adler32_combine</tt> does.
+     * @param length2 the length of the second piece
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = rem * sum1 % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += (adler1 >>> 16 & 0xffff) + (adler2 >>> 16 & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum2 << 16 | sum1;
+    }
+
+    /**
+     * An image split into bands of rows to be deflated in parallel, and the
+     * results.
+     */
+    private static final class Bands {
+        final byte[] data;
+        final byte[] pixels;
+        final int width;
+        final int height;
+        final int rowFilter;
+        final int bandRows;
+        final int count;
+        // for each band: its deflated data, with room for the zlib header
+        // before the first and the trailer after the last; the length of that
+        // data; and the length and checksum of the filtered data it holds
+        final byte[][] deflated;
+        final int[] deflatedLength;
+        final int[] inputLength;
+        final long[] adler;
+
+        Bands(byte[] data, byte[] pixels, int width, int height, int rowFilter, int bandRows) {
+            this.data = data;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.rowFilter = rowFilter;
+            this.bandRows = bandRows;
+            this.count = (height + bandRows - 1) / bandRows;
+            deflated = new byte[count][];
+            deflatedLength = new int[count];
+            inputLength = new int[count];
+            adler = new long[count];
+        }
+    }
+
+    /**
+     * Deflates a range of bands, splitting it in half until each task holds a
+     * single band.
+     */
+    private static final class BandTask extends RecursiveAction {
+        private final Bands bands;
+        private final int from;
+        private final int to;
+
+        BandTask(Bands bands, int from, int to) {
+            this.bands = bands;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(bands, from, mid), new BandTask(bands, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                deflateBand(i);
+            }
+        }
+
+        private void deflateBand(int band) {
+            int first = band * bands.bandRows;
+            int end = Math.min(bands.height, first + bands.bandRows);
+            Scanlines scanlines = new Scanlines();
+            int stride = bands.width * (bands.pixels != null ? 1 : 4) + 1;
+            // filter enough of the rows before the band to fill the dictionary
+            int dictionaryRows = Math.min(first, (DICTIONARY_SIZE + stride - 1) / stride);
+            int start = first - dictionaryRows;
+            byte[] input = new byte[(end - start) * stride];
+            scanlines.start(bands.data, bands.pixels, bands.width, bands.rowFilter, start);
+            for (int y = start; y < end; y++) {
+                System.arraycopy(scanlines.next(y), 0, input, (y - start) * stride, stride);
+            }
+            int offset = dictionaryRows * stride;
+            int length = input.length - offset;
+
+            Deflater deflater = bandDeflaters.get();
+            deflater.reset();
+            if (offset > 0) {
+                int dictionary = Math.min(offset, DICTIONARY_SIZE);
+                deflater.setDictionary(input, offset - dictionary, dictionary);
+            }
+            deflater.setInput(input, offset, length);
+            boolean last = band == bands.count - 1;
+            int lead = band == 0 ? 2 : 0;
+            int trail = last ? 4 : 0;
+            byte[] out = new byte[lead + length / 2 + 64 + trail];
+            int n = lead;
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                if (n == out.length - trail) {
+                    out = Arrays.copyOf(out, 2 * out.length);
+                }
+                int room = out.length - trail - n;
+                n += deflater.deflate(out, n, room, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                // a flush is complete once it leaves room to spare
+                if (last ? deflater.finished() : n < out.length - trail) {
+                    break;
+                }
+            }
+            Adler32 adler = new Adler32();
+            adler.update(input, offset, length);
+            bands.deflated[band] = out;
+            bands.deflatedLength[band] = n;
+            bands.inputLength[band] = length;
+            bands.adler[band] = adler.getValue();
+        }
+    }
+
+    /**
+     * Finds the distinct colors of the image and the palette index of each
+     * pixel.
+     * @return the number of colors, or 0 if there are too many for a palette
+     */
+    private int collectPalette(byte[] data, int pixels) {
+        if (indices.length < pixels) {
+            indices = new byte[pixels];
+        }
+        Arrays.fill(tableIndices, (short)0);
+        int mask = tableColors.length - 1;
+        int count = 0;
+        int lastColor = 0;
+        int lastIndex = -1;
+        for (int p = 0, i = 0; p < pixels; p++, i += 4) {
+            int rgba = (data[i + 3] & 0xff) << 24 | (data[i + 2] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i] & 0xff);
+            if (rgba != lastColor || lastIndex < 0) {
+                int slot = (rgba * 0x9e3779b9) >>> 22 & mask;
+                while (tableIndices[slot] != 0 && tableColors[slot] != rgba) {
+                    slot = (slot + 1) & mask;
+                }
+                if (tableIndices[slot] == 0) {
+                    if (count == MAX_PALETTE) {
+                        return 0;
+                    }
+                    palette[count] = rgba;
+                    tableColors[slot] = rgba;
+                    tableIndices[slot] = (short)++count;
+                }
+                lastColor = rgba;
+                lastIndex = tableIndices[slot] - 1;
+            }
+            indices[p] = (byte)lastIndex;
+        }
+        return count;
+    }
+
+    /**
+     * Puts the palette in order along the blend from the first pixel's color,
+     * normally the background, to the farthest one, and renumbers the pixels
+     * to match. Neighboring pixels of antialiased edges then get neighboring
+     * indices, which the filters and the deflater make much more of than
+     * indices in the order the colors happened to turn up.
+     */
+    private void sortPalette(int colors, int pixels) {
+        int first = palette[0];
+        long[] order = new long[colors];
+        for (int i = 0; i < colors; i++) {
+            int c = palette[i];
+            int distance = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                distance += Math.abs((c >>> shift & 0xff) - (first >>> shift & 0xff));
+            }
+            order[i] = (long)distance << 32 | i;
+        }
+        Arrays.sort(order);
+        byte[] remap = new byte[colors];
+        int[] sorted = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            int old = (int)order[i];
+            sorted[i] = palette[old];
+            remap[old] = (byte)i;
+        }
+        System.arraycopy(sorted, 0, palette, 0, colors);
+        for (int p = 0; p < pixels; p++) {
+            indices[p] = remap[indices[p] & 0xff];
+        }
+    }
+
+    private void writePalette(OutputStream out, int colors) throws IOException {
+        byte[] plte = new byte[3 * colors];
+        byte[] trns = new byte[colors];
+        int lastTranslucent = -1;
+        for (int i = 0; i < colors; i++) {
+            int rgba = palette[i];
+            plte[3 * i] = (byte)(rgba >>> 24);
+            plte[3 * i + 1] = (byte)(rgba >>> 16);
+            plte[3 * i + 2] = (byte)(rgba >>> 8);
+            trns[i] = (byte)rgba;
+            if ((rgba & 0xff) != 0xff) {
+                lastTranslucent = i;
+            }
+        }
+        writeChunk(out, "PLTE", plte, plte.length);
+        if (lastTranslucent >= 0) {
+            // entries past the last one given are opaque
+            writeChunk(out, "tRNS", trns, lastTranslucent + 1);
+        }
+    }
+
+    /**
+     * Runs the deflater once, writing an IDAT chunk whenever the buffer fills.
+     */
+    private void deflate(OutputStream out) throws IOException {
+        idatCount += deflater.deflate(idat, idatCount, idat.length - idatCount);
+        if (idatCount == idat.length) {
+            writeChunk(out, "IDAT", idat, idatCount);
+            idatCount = 0;
+        }
+    }
+
+    private void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        // the length and type, written together to spare unbuffered streams
+        byte[] header = new byte[8];
+        TextwriterDaemon.putInt(header, 0, length);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte)type.charAt(i);
+        }
+        out.write(header);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(header, 4, 4);
+        crc.update(data, 0, length);
+        TextwriterDaemon.putInt(header, 0, (int)crc.getValue());
+        out.write(header, 0, 4);
+    }
+
+    /**
+     * Produces the filtered scanlines of an image in order, each one preceded
+     * by its filter type byte.
+     */
+    private static final class Scanlines {
+        private byte[] data;
+        private byte[] pixels;
+        private int width;
+        private int bpp;
+        private int length;
+        private int type;
+        // the raw bytes of the previous and current rows, and one filtered row per filter type
+        private byte[] prev = new byte[0];
+        private byte[] cur = new byte[0];
+        private final byte[][] filtered = new byte[5][0];
+
+        /**
+         * Sets up to filter an image from the given row on.
+         * @param data the image's ABGR data
+         * @param pixels the palette index of each pixel, or {@code null} to
+         *  write RGBA
+         */
+        void start(byte[] data, byte[] pixels, int width, int type, int y) {
+            this.data = data;
+            this.pixels = pixels;
+            this.width = width;
+            this.type = type;
+            bpp = pixels != null ? 1 : 4;
+            length = width * bpp;
+            if (cur.length < length) {
+                prev = new byte[length];
+                cur = new byte[length];
+                for (int f = 0; f < filtered.length; f++) {
+                    filtered[f] = new byte[length + 1];
+                }
+            }
+            if (y == 0) {
+                Arrays.fill(prev, 0, length, (byte)0);
+            }
+            else {
+                load(y - 1, prev);
+            }
+        }
+
+        /**
+         * Returns the length of a filtered row, including the filter type.
+         */
+        int length() {
+            return length + 1;
+        }
+
+        /**
+         * Filters the given row, which must follow the one filtered last.
+         * @return a buffer holding the filter type byte followed by the
+         *  filtered row, valid until the next call
+         */
+        byte[] next(int y) {
+            load(y, cur);
+            byte[] row = filter();
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+            return row;
+        }
+
+        private void load(int y, byte[] row) {
+            if (pixels != null) {
+                System.arraycopy(pixels, y * width, row, 0, width);
+                return;
+            }
+            // ABGR to RGBA
+            for (int x = 0, i = 4 * y * width; x < width; x++, i += 4) {
+                row[4 * x] = data[i + 3];
+                row[4 * x + 1] = data[i + 2];
+                row[4 * x + 2] = data[i + 1];
+                row[4 * x + 3] = data[i];
+            }
+        }
+
+        private byte[] filter() {
+            if (type != FILTER_ADAPTIVE) {
+                return filter(type, filtered[type]);
+            }
+            // choose the filter whose output has the smallest sum of absolute
+            // values, the usual heuristic for what will compress best
+            byte[] best = null;
+            long bestSum = Long.MAX_VALUE;
+            for (int f = FILTER_NONE; f <= FILTER_PAETH; f++) {
+                byte[] row = filter(f, filtered[f]);
+                long sum = 0;
+                for (int i = 1; i <= length && sum < bestSum; i++) {
+                    sum += Math.abs(row[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = row;
+                }
+            }
+            return best;
+        }
+
+        private byte[] filter(int type, byte[] out) {
+            out[0] = (byte)type;
+            for (int i = 0; i < length; i++) {
+                int x = cur[i] & 0xff;
+                int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                int b = prev[i] & 0xff;
+                int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+                int predicted;
+                switch (type) {
+                    case FILTER_SUB:
+                        predicted = a;
+                        break;
+                    case FILTER_UP:
+                        predicted = b;
+                        break;
+                    case FILTER_AVERAGE:
+                        predicted = (a + b) >>> 1;
+                        break;
+                    case FILTER_PAETH:
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        predicted = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                        break;
+                    default:
+                        predicted = 0;
+                        break;
+                }
+                out[i + 1] = (byte)(x - predicted);
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/* RasterPool.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Per-thread pools of raster arrays, so that a thread that renders one image
+ * after another keeps drawing into the same memory instead of allocating a
+ * new raster each time.
+ *
+ * <p>Arrays come in power-of-two size classes from {@value #MIN_CLASS_SIZE}
+ * bytes up to <tt>textwriter.rasterPoolMax</tt> bytes, by default
+ * {@value #DEFAULT_MAX_CLASS_SIZE}, and each thread keeps at most one array
+ * of each class. An image too big for the largest class gets a plain array,
+ * which is left to the garbage collector. A pooled array is not cleared when
+ * it is handed out, so whoever draws into it must set every pixel it
+ * uses.</p>
+ *
+ * <p>The pools only pay off on threads that are reused, like the worker
+ * pools; a virtual thread that serves one connection starts with an empty
+ * pool.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class RasterPool {
+    static final int MIN_CLASS_SIZE = 1 << 14;
+    public static final int DEFAULT_MAX_CLASS_SIZE = 1 << 22;
+    private static final int MIN_CLASS = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int MAX_CLASS = 31 - Integer.numberOfLeadingZeros(
+            Math.max(MIN_CLASS_SIZE, Integer.getInteger("textwriter.rasterPoolMax", DEFAULT_MAX_CLASS_SIZE)));
+
+    // the color model of TYPE_4BYTE_ABGR, which pooled images are built with
+    private static final ColorModel ABGR = new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR).getColorModel();
+    private static final int[] ABGR_OFFSETS = {3, 2, 1, 0};
+
+    // each thread's free arrays, indexed by size class
+    private static final ThreadLocal<byte[][]> pools = new ThreadLocal<byte[][]>() {
+        protected byte[][] initialValue() {
+            return new byte[MAX_CLASS - MIN_CLASS + 1][];
+        }
+    };
+
+    private RasterPool() {}
+
+    /**
+     * Returns a {@link BufferedImage#TYPE_4BYTE_ABGR} image whose raster comes
+     * from this thread's pool if possible. The pixels are not cleared.
+     */
+    static BufferedImage createImage(int width, int height) {
+        long size = 4L * width * height;
+        if (size > Integer.MAX_VALUE) {
+            // no array can hold it; let BufferedImage report that
+            return new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        byte[] buf = borrow((int)size);
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(buf, (int)size),
+                width, height, 4 * width, 4, ABGR_OFFSETS, null);
+        return new BufferedImage(ABGR, raster, false, null);
+    }
+
+    /**
+     * Returns the raster of an image made by {@link #createImage(int, int)} to
+     * this thread's pool. The image must not be used afterwards.
+     */
+    static void release(BufferedImage image) {
+        DataBuffer db = image.getRaster().getDataBuffer();
+        if (db instanceof DataBufferByte) {
+            release(((DataBufferByte)db).getData());
+        }
+    }
+
+    private static byte[] borrow(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            Metrics.rasterPoolMisses.increment();
+            return new byte[size];
+        }
+        byte[][] pool = pools.get();
+        byte[] buf = pool[c];
+        if (buf != null) {
+            pool[c] = null;
+            Metrics.rasterPoolHits.increment();
+            Metrics.rasterPoolBytes.add(-buf.length);
+            return buf;
+        }
+        Metrics.rasterPoolMisses.increment();
+        return new byte[1 << (c + MIN_CLASS)];
+    }
+
+    private static void release(byte[] buf) {
+        int n = buf.length;
+        if (Integer.bitCount(n) != 1) {
+            // not one of ours
+            return;
+        }
+        int c = Integer.numberOfTrailingZeros(n) - MIN_CLASS;
+        if (c < 0 || c > MAX_CLASS - MIN_CLASS) {
+            return;
+        }
+        byte[][] pool = pools.get();
+        if (pool[c] == null) {
+            pool[c] = buf;
+            Metrics.rasterPoolBytes.add(n);
+        }
+    }
+
+    /**
+     * Returns the index of the smallest size class that holds the given
+     * number of bytes, or -1 if none does.
+     */
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_CLASS) {
+            return -1;
+        }
+        if (size <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS;
+    }
+}
@@ -0,0 +1,258 @@
+/* RenderCache.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A cache of encoded render results, so that text the frontend asks for over
+ * and over is only rendered and encoded once.
+ *
+ * <p>Entries are keyed on everything that affects the image: the text, the
+ * derived font, and the two colors. The cache is split into segments, each an
+ * LRU list guarded by its own lock with an equal share of the byte budget, so
+ * that concurrent lookups rarely wait on each other. The budget counts the
+ * encoded bytes plus an estimate of each entry's overhead, and is set with the
+ * <tt>textwriter.cacheBytes</tt> system property, by default
+ * {@value #DEFAULT_BUDGET}; a budget of 0 turns the cache off.</p>
+ *
+ * <p>{@link FontCollection} invalidates entries when a font family is replaced,
+ * and an image rendered in a font that was replaced in the meantime is not
+ * cached.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class RenderCache {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    public static final long DEFAULT_BUDGET = 32 << 20;
+    private static final int SEGMENTS = 16;
+    // a rough allowance for the key, the map entry and the array header
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final RenderCache instance = new RenderCache(Long.getLong("textwriter.cacheBytes", DEFAULT_BUDGET));
+
+    /**
+     * The parameters of a render, which determine the encoded image.
+     */
+    static final class Key {
+        private final String text;
+        private final Font font;
+        private final int background;
+        private final int foreground;
+        private final long layout;
+        private final int hash;
+
+        /**
+         * @param layout the paragraph layout parameters, packed into one
+         *  number by {@link RenderRequest#getCacheKey()}
+         */
+        Key(String text, Font font, Color background, Color foreground, long layout) {
+            this.text = text;
+            this.font = font;
+            this.background = background.getRGB();
+            this.foreground = foreground.getRGB();
+            this.layout = layout;
+            int h = text.hashCode();
+            h = 31 * h + (font == null ? 0 : font.hashCode());
+            h = 31 * h + this.background;
+            h = 31 * h + this.foreground;
+            h = 31 * h + (int)(layout ^ layout >>> 32);
+            this.hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hash == k.hash && background == k.background && foreground == k.foreground
+                    && layout == k.layout && text.equals(k.text) && (font == null ? k.font == null : font.equals(k.font));
+        }
+
+        int size() {
+            return 2 * text.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * One LRU list with its share of the budget. All access is synchronized
+     * on the segment.
+     */
+    private static final class Segment extends LinkedHashMap<Key, byte[]> {
+        private final long budget;
+        private long bytes = 0;
+
+        Segment(long budget) {
+            super(16, 0.75f, true);
+            this.budget = budget;
+        }
+
+        void add(Key key, byte[] data) {
+            byte[] old = put(key, data);
+            if (old != null) {
+                bytes -= key.size() + old.length;
+            }
+            bytes += key.size() + data.length;
+            Iterator<Map.Entry<Key, byte[]>> it = entrySet().iterator();
+            while (bytes > budget && it.hasNext()) {
+                Map.Entry<Key, byte[]> eldest = it.next();
+                bytes -= eldest.getKey().size() + eldest.getValue().length;
+                it.remove();
+                Metrics.cacheEvictions.increment();
+            }
+        }
+
+        void removeFamily(String family) {
+            Iterator<Map.Entry<Key, byte[]>> it = entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, byte[]> e = it.next();
+                Font font = e.getKey().font;
+                if (font != null && family.equals(FontCollection.FamilyFont.familyOf(font))) {
+                    bytes -= e.getKey().size() + e.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+
+        void removeAll() {
+            clear();
+            bytes = 0;
+        }
+    }
+
+    private final Segment[] segments;
+    private final boolean enabled;
+
+    /**
+     * Creates a new {@code RenderCache}.
+     * @param budget the most bytes the cache may hold, or 0 for no caching
+     */
+    RenderCache(long budget) {
+        enabled = budget > 0;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(budget / SEGMENTS);
+        }
+        logger.config("Render cache budget is " + budget + " bytes");
+    }
+
+    static RenderCache getInstance() {
+        return instance;
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Returns the encoded image for the given parameters, or {@code null} if
+     * it isn't cached. The returned array must not be modified.
+     */
+    byte[] get(Key key) {
+        if (!enabled) {
+            return null;
+        }
+        Segment s = segmentFor(key);
+        byte[] data;
+        synchronized (s) {
+            data = s.get(key);
+        }
+        (data == null ? Metrics.cacheMisses : Metrics.cacheHits).increment();
+        return data;
+    }
+
+    /**
+     * Caches an encoded image, evicting the least recently used entries as
+     * needed to stay within the budget, unless its font has been replaced in
+     * the {@link FontCollection} since it was looked up. The array must not
+     * be modified afterwards.
+     */
+    void put(Key key, byte[] data) {
+        if (!enabled) {
+            return;
+        }
+        Segment s = segmentFor(key);
+        if (key.size() + data.length > s.budget) {
+            return;
+        }
+        synchronized (s) {
+            // checked under the lock, so either the family is invalidated
+            // after this or the stale image is never added
+            if (FontCollection.FamilyFont.isCurrent(key.font)) {
+                s.add(key, data);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry rendered in the given font family, named as it is
+     * in the {@link FontCollection}.
+     */
+    void invalidate(String family) {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.removeFamily(family);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    void invalidateAll() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.removeAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes the cache holds, as counted against the
+     * budget.
+     */
+    long size() {
+        long total = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                total += s.bytes;
+            }
+        }
+        return total;
+    }
+}
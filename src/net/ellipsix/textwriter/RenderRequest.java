@@ -25,18 +25,24 @@
 
 package net.ellipsix.textwriter;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
 import java.awt.font.TextLayout;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.RasterFormatException;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 
@@ -48,36 +54,174 @@ import javax.imageio.ImageIO;
 public class RenderRequest {
     private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
 
+    public static final int DEFAULT_MAX_PIXELS = 1 << 24;
+    /** The largest image, in pixels, that will be rendered */
+    static final long MAX_PIXELS = Long.getLong("textwriter.maxPixels", DEFAULT_MAX_PIXELS);
+    /**
+     * The context that all text is laid out and drawn in: antialiased, with
+     * integer metrics, the same as a {@code Graphics2D} on an image with
+     * antialiasing turned on.
+     */
+    static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+
+    public static final int DEFAULT_LAYOUT_CACHE_SIZE = 1024;
+    static final int layoutCacheSize = Integer.getInteger("textwriter.layoutCacheSize", DEFAULT_LAYOUT_CACHE_SIZE);
+
+    /**
+     * Identifies a layout by its text and the very {@link Font} object it was
+     * laid out in. Fonts come from {@link FontCollection#getFont(String, int, float)},
+     * which hands out the same object for the same family, style and size, so
+     * comparing identities is enough, and layouts in a font that has been
+     * replaced are simply never asked for again.
+     */
+    private static final class LayoutKey {
+        private final String text;
+        private final Font font;
+
+        LayoutKey(String text, Font font) {
+            this.text = text;
+            this.font = font;
+        }
+
+        public int hashCode() {
+            return 31 * text.hashCode() + System.identityHashCode(font);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof LayoutKey)) {
+                return false;
+            }
+            LayoutKey k = (LayoutKey)o;
+            return font == k.font && text.equals(k.text);
+        }
+    }
+
+    /**
+     * One LRU list of layouts with its share of the cache size. All access is
+     * synchronized on the segment.
+     */
+    private static final class LayoutSegment extends LinkedHashMap<LayoutKey,TextLayout> {
+        private final int capacity;
+
+        LayoutSegment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey,TextLayout> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static final int LAYOUT_SEGMENTS = 16;
+    // The most recently used layouts, all laid out in FRC, split over segments
+    // by key so that concurrent renders rarely wait on each other
+    private static final LayoutSegment[] layouts = new LayoutSegment[LAYOUT_SEGMENTS];
+    static {
+        for (int i = 0; i < LAYOUT_SEGMENTS; i++) {
+            layouts[i] = new LayoutSegment((layoutCacheSize + LAYOUT_SEGMENTS - 1) / LAYOUT_SEGMENTS);
+        }
+    }
+
     private String text;
     private Font font;
     private Color background;
     private Color foreground;
+    // how a paragraph request lays out its text
+    private int maxWidth;
+    private int alignment = ParagraphLayout.ALIGN_LEFT;
+    private int lineSpacing = ParagraphLayout.SINGLE_SPACING;
     private BufferedImage image;
 
+    /**
+     * Thrown when the image for a request would have more than
+     * {@link #MAX_PIXELS} pixels. It is thrown before the image is allocated.
+     */
+    public static class TooLargeException extends IllegalArgumentException {
+        TooLargeException(long width, long height) {
+            super("Image of " + width + "x" + height + " pixels is over the limit of " + MAX_PIXELS);
+        }
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    static {
+        // Encode through memory rather than temporary files. This also lets
+        // ImageIO pass the encoded data on to the output stream as it goes,
+        // for the images that PngEncoder hands over to it.
+        ImageIO.setUseCache(false);
+    }
+
     public static RenderRequest parse(BufferedReader r) throws IOException {
-        logger.finest("Reading font information");
-        String fontName = r.readLine();
-        int fontSize = r.read();
-        int bold = r.read();
-        int italic = r.read();
-        int style = (bold == 0 ? 0 : Font.BOLD) | (italic == 0 ? 0 : Font.ITALIC);
+        long start = System.nanoTime();
+        Font font = parseFont(r);
         String background = r.readLine();
         String foreground = r.readLine();
+        String text = parseText(r);
+        RenderRequest req = new RenderRequest(text, font, parseColor(background), parseColor(foreground));
+        Metrics.PARSE.recordSince(start);
+        return req;
+    }
+
+    /**
+     * Reads a paragraph request, which is laid out like a render request with
+     * three more fields before the text: a line holding the width in pixels to
+     * wrap the text to, or 0 to break lines only at line breaks; a character
+     * holding the alignment, 0 for left, 1 for center or 2 for right; and a
+     * line holding the line spacing as a percentage of the height of a line.
+     */
+    public static RenderRequest parseParagraph(BufferedReader r) throws IOException {
+        long start = System.nanoTime();
+        Font font = parseFont(r);
+        String background = r.readLine();
+        String foreground = r.readLine();
+        String maxWidth = r.readLine();
+        int alignment = r.read();
+        String lineSpacing = r.readLine();
+        String text = parseText(r);
+        RenderRequest req = new RenderRequest(text, font, parseColor(background), parseColor(foreground));
+        try {
+            req.setParagraphLayout(Integer.parseInt(maxWidth), alignment, Integer.parseInt(lineSpacing));
+        }
+        catch (IllegalArgumentException iae) {
+            throw new IOException("Invalid paragraph layout " + maxWidth + ", " + alignment + ", " + lineSpacing);
+        }
+        Metrics.PARSE.recordSince(start);
+        return req;
+    }
+
+    /**
+     * Reads the text at the end of a request: a character holding the number
+     * of lines, followed by the lines.
+     */
+    static String parseText(BufferedReader r) throws IOException {
         int nLines = r.read();
         logger.finest("Reading " + nLines + " lines of text");
-        String text;
         if (nLines == 1) {
-            text = r.readLine();
-        }
-        else {
-            StringBuilder sb = new StringBuilder();
-            while (nLines-- > 0)
-                sb.append(r.readLine() + "\n");
-            text = sb.toString();
+            return r.readLine();
         }
+        StringBuilder sb = new StringBuilder();
+        while (nLines-- > 0)
+            sb.append(r.readLine() + "\n");
+        return sb.toString();
+    }
+
+    /**
+     * Reads the font name, size, and style fields at the start of a request
+     * and looks up the corresponding font.
+     * @return the font, or {@code null} if there is no font of that name
+     */
+    static Font parseFont(BufferedReader r) throws IOException {
+        logger.finest("Reading font information");
+        String fontName = r.readLine();
+        int fontSize = r.read();
+        int bold = r.read();
+        int italic = r.read();
+        int style = (bold == 0 ? 0 : Font.BOLD) | (italic == 0 ? 0 : Font.ITALIC);
         logger.finest("Getting font");
-        Font font = FontCollection.getInstance().getFont(fontName, style, fontSize);
-        return new RenderRequest(text, font, parseColor(background), parseColor(foreground));
+        return FontCollection.getInstance().getFont(fontName, style, fontSize);
     }
 
     public RenderRequest(String text, Font font, Color background, Color foreground) {
@@ -85,61 +229,211 @@ public class RenderRequest {
         this.font = font;
         this.background = background;
         this.foreground = foreground;
-        this.image = renderText(text, font, background, foreground);
+    }
+
+    /**
+     * Lays the text out as a block of paragraphs with the given parameters.
+     * Without this, the text is only broken into lines at line breaks. The
+     * line spacing is capped at {@link ParagraphLayout#MAX_LINE_SPACING}.
+     * @see ParagraphLayout#layout(String, Font, int, int, int)
+     */
+    public void setParagraphLayout(int maxWidth, int alignment, int lineSpacing) {
+        if (alignment < ParagraphLayout.ALIGN_LEFT || alignment > ParagraphLayout.ALIGN_RIGHT) {
+            throw new IllegalArgumentException("Invalid alignment " + alignment);
+        }
+        this.maxWidth = Math.max(0, maxWidth);
+        this.alignment = alignment;
+        this.lineSpacing = lineSpacing > 0 ? Math.min(lineSpacing, ParagraphLayout.MAX_LINE_SPACING) : ParagraphLayout.SINGLE_SPACING;
+    }
+
+    /**
+     * Returns {@code true} if {@link #setParagraphLayout(int, int, int)} has
+     * changed anything from the defaults.
+     */
+    private boolean hasParagraphLayout() {
+        return maxWidth > 0 || alignment != ParagraphLayout.ALIGN_LEFT || lineSpacing != ParagraphLayout.SINGLE_SPACING;
+    }
+
+    /**
+     * Returns the rendered image, rendering it the first time this is called.
+     * Rendering is deferred so that a request can be parsed without holding
+     * any of the resources used for rendering.
+     * @throws TooLargeException if the image would be too large
+     */
+    public BufferedImage getImage() {
+        if (image == null) {
+            image = hasParagraphLayout()
+                    ? ParagraphLayout.layout(text, font, maxWidth, alignment, lineSpacing).render(background, foreground, true)
+                    : renderText(text, font, background, foreground, true);
+        }
+        return image;
+    }
+
+    /**
+     * Returns the rendered image's raster to the {@link RasterPool} of the
+     * current thread. Call this once the image has been written; the next
+     * call to {@link #getImage()} renders it again.
+     */
+    void recycle() {
+        if (image != null) {
+            RasterPool.release(image);
+            image = null;
+        }
+    }
+
+    /**
+     * Returns the key under which this request's encoded image is kept in the
+     * {@link RenderCache}.
+     */
+    RenderCache.Key getCacheKey() {
+        // the line spacing is capped well below 1 << 30, so it can't reach the width
+        long layout = (long)maxWidth << 32 | (long)lineSpacing << 2 | alignment;
+        return new RenderCache.Key(text, font, background, foreground, layout);
     }
 
     public void write(OutputStream out) throws IOException {
-        ImageIO.write(image, "PNG", out);
+        BufferedImage image = getImage();
+        long start = System.nanoTime();
+        PngEncoder.write(image, out);
+        Metrics.ENCODE.recordSince(start);
     }
 
     public void write(File file) throws IOException {
-        ImageIO.write(image, "PNG", file);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(out);
+        }
+        finally {
+            out.close();
+        }
     }
 
     /**
      * Creates an image with the given text using the given rendering parameters.
      *
+     * <p>The text is measured first, and the image is allocated at exactly
+     * the size of the text's bounds.</p>
+     *
      * @param text the text to draw in the image
      * @param font the font to use to draw the text
      * @param bgColor the background color
      * @param fgColor the foreground color
+     * @throws TooLargeException if the image would have more than
+     *  {@link #MAX_PIXELS} pixels
      */
     public static BufferedImage renderText(String text, Font font, Color bgColor, Color fgColor) {
-        logger.entering("RenderRequest", "renderText", new Object[] {text, font, bgColor, fgColor});
-        // create the image
-        BufferedImage image = new BufferedImage(font.getSize() * text.length() + 2, font.getSize() + 2, BufferedImage.TYPE_4BYTE_ABGR);
+        return renderText(text, font, bgColor, fgColor, false);
+    }
+
+    /**
+     * Measures the image that {@link #renderText(String, Font, Color, Color)}
+     * would draw, without drawing it. Layouts are cached, so the text is
+     * usually not laid out again when it is rendered. Text drawn from a
+     * {@link GlyphAtlas} can come out a pixel or so different.
+     * @return the width and height, in pixels
+     */
+    static long[] measureText(String text, Font font) {
+        Rectangle2D bounds;
+        if (text.indexOf('\n') >= 0) {
+            bounds = ParagraphLayout.layout(text, font, 0, ParagraphLayout.ALIGN_LEFT,
+                    ParagraphLayout.SINGLE_SPACING).getBounds();
+        }
+        else {
+            bounds = getLayout(text, font, FRC).getBounds();
+        }
+        return new long[] {(long)(bounds.getWidth() + 1), (long)(bounds.getHeight() + 1)};
+    }
+
+    /**
+     * Creates an image with the given text, optionally drawing it into an
+     * image from the current thread's {@link RasterPool}.
+     * @param pooled whether to use a pooled image, which the caller must
+     *  hand back with {@link RasterPool#release(BufferedImage)}
+     * @see #renderText(String, Font, Color, Color)
+     */
+    static BufferedImage renderText(String text, Font font, Color bgColor, Color fgColor, boolean pooled) {
+        if (logger.isLoggable(Level.FINER)) {
+            logger.entering("RenderRequest", "renderText", new Object[] {text, font, bgColor, fgColor});
+        }
+        if (text.indexOf('\n') >= 0) {
+            // a TextLayout doesn't break lines, so lay out a block instead
+            BufferedImage block = ParagraphLayout.layout(text, font, 0, ParagraphLayout.ALIGN_LEFT,
+                    ParagraphLayout.SINGLE_SPACING).render(bgColor, fgColor, pooled);
+            logger.exiting("RenderRequest", "renderText", block);
+            return block;
+        }
+        // short, simple text is composited from pre-rasterized glyphs
+        long start = System.nanoTime();
+        BufferedImage composited = GlyphAtlas.render(text, font, bgColor, fgColor, pooled);
+        if (composited != null) {
+            Metrics.RASTERIZE.recordSince(start);
+            Metrics.pixels.add((long)composited.getWidth() * composited.getHeight());
+            logger.exiting("RenderRequest", "renderText", composited);
+            return composited;
+        }
+        // get the text boundary
+        start = System.nanoTime();
+        TextLayout layout = getLayout(text, font, FRC);
+        Rectangle2D bounds = layout.getBounds();
+        start = Metrics.LAYOUT.recordSince(start);
+        logger.finest("Text bounds: " + bounds);
+        long width = (long)(bounds.getWidth() + 1);
+        long height = (long)(bounds.getHeight() + 1);
+        if (width * height > MAX_PIXELS) {
+            throw new TooLargeException(width, height);
+        }
+
+        // create an image that just fits the text
+        BufferedImage image = pooled ? RasterPool.createImage((int)width, (int)height)
+                : new BufferedImage((int)width, (int)height, BufferedImage.TYPE_4BYTE_ABGR);
         logger.finest("Created image of size " + image.getWidth() + "x" + image.getHeight());
         
         // get a graphics object
         Graphics2D g = image.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
         
-        // get the text boundary
-        TextLayout layout = new TextLayout(text, font, g.getFontRenderContext());
-        Rectangle2D bounds = layout.getBounds();
-        logger.finest("Text bounds: " + bounds);
-        
-        // fill the background
+        // fill the background, replacing whatever a pooled image held before
+        g.setComposite(AlphaComposite.Src);
         g.setColor(bgColor);
-        g.fillRect(0, 0, (int)(bounds.getWidth() + 1), (int)(bounds.getHeight() + 1));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
         
         // draw the text
+        g.setComposite(AlphaComposite.SrcOver);
         g.setColor(fgColor);
         layout.draw(g, -(float)bounds.getX(), -(float)bounds.getY());
-        
-        // and trim
-        try {
-            image = image.getSubimage(0, 0, (int)(bounds.getWidth() + 1), (int)(bounds.getHeight() + 1));
-        }
-        catch (RasterFormatException rfe) {
-            // usually means that the text boundary was bigger than the canvas
-            logger.throwing("RenderRequest", "renderText", rfe);
-            // ignore for now
-        }
+        g.dispose();
+        Metrics.RASTERIZE.recordSince(start);
+        Metrics.pixels.add((long)image.getWidth() * image.getHeight());
         logger.exiting("RenderRequest", "renderText", image);
         return image;
     }
 
+    /**
+     * Returns the layout of the given text, laying it out only if it isn't in
+     * the layout cache. {@code TextLayout} is immutable, so one layout can be
+     * drawn by any number of threads.
+     */
+    static TextLayout getLayout(String text, Font font, FontRenderContext frc) {
+        if (layoutCacheSize <= 0) {
+            return new TextLayout(text, font, frc);
+        }
+        LayoutKey key = new LayoutKey(text, font);
+        int h = key.hashCode();
+        LayoutSegment segment = layouts[(h ^ (h >>> 16)) & (LAYOUT_SEGMENTS - 1)];
+        TextLayout layout;
+        synchronized (segment) {
+            layout = segment.get(key);
+        }
+        if (layout == null) {
+            // lay out without holding the segment; two threads may both do it
+            layout = new TextLayout(text, font, frc);
+            synchronized (segment) {
+                segment.put(key, layout);
+            }
+        }
+        return layout;
+    }
+
     /**
      * Parses a color from a 8-character hex digit specification.
      *
@@ -0,0 +1,137 @@
+/* RequestCapture.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Records the requests the daemon receives to a capture file, so that real
+ * traffic can be replayed later with {@link LoadGenerator}.
+ *
+ * <p>Capturing is turned on by setting the <tt>textwriter.capture</tt> system
+ * property to the path of the file to write. Each record in the file is</p>
+ * <pre>
+ * u64 nanoseconds since capturing started
+ * u8  protocol    RequestFramer.PROTOCOL_V1 or PROTOCOL_V2
+ * u32 n, then n bytes: the request exactly as framed by RequestFramer
+ * </pre>
+ * <p>A binary protocol request is recorded without the {@link BinaryProtocol#MAGIC}
+ * byte that started its connection. Records are flushed as they are written,
+ * so the file is complete up to the last request even if the daemon is
+ * killed.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class RequestCapture {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    private static final DataOutputStream capture = open(System.getProperty("textwriter.capture"));
+    private static final long start = System.nanoTime();
+
+    /**
+     * One request read back from a capture file.
+     */
+    static final class Record {
+        /** Nanoseconds from the start of the capture to when the request arrived */
+        final long time;
+        final int protocol;
+        final byte[] request;
+
+        Record(long time, int protocol, byte[] request) {
+            this.time = time;
+            this.protocol = protocol;
+            this.request = request;
+        }
+    }
+
+    private RequestCapture() {}
+
+    private static DataOutputStream open(String path) {
+        if (path == null) {
+            return null;
+        }
+        try {
+            logger.config("Capturing requests to " + path);
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        }
+        catch (IOException ioe) {
+            logger.throwing("RequestCapture", "open", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Records one request, if capturing is turned on. A failure to write is
+     * logged and turns nothing else off.
+     * @param request a buffer holding exactly one request; its position is
+     *  not changed
+     * @param protocol the connection's protocol version
+     */
+    static void record(ByteBuffer request, int protocol) {
+        if (capture == null) {
+            return;
+        }
+        long time = System.nanoTime() - start;
+        synchronized (capture) {
+            try {
+                capture.writeLong(time);
+                capture.write(protocol);
+                capture.writeInt(request.remaining());
+                capture.write(request.array(), request.arrayOffset() + request.position(), request.remaining());
+                capture.flush();
+            }
+            catch (IOException ioe) {
+                logger.throwing("RequestCapture", "record", ioe);
+            }
+        }
+    }
+
+    /**
+     * Reads the next record from a capture file.
+     * @return the record, or {@code null} at the end of the file
+     */
+    static Record read(DataInputStream in) throws IOException {
+        long time;
+        try {
+            time = in.readLong();
+        }
+        catch (EOFException eofe) {
+            return null;
+        }
+        int protocol = in.readUnsignedByte();
+        byte[] request = new byte[in.readInt()];
+        in.readFully(request);
+        return new Record(time, protocol, request);
+    }
+}
@@ -0,0 +1,102 @@
+/* RequestContext.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tells a request handler whether the result of a request is still wanted.
+ *
+ * <p>A request is abandoned once its connection has closed or its deadline,
+ * if it has one, has passed. Handlers call {@link #check()} between the stages
+ * of a render so that abandoned work stops as early as possible.</p>
+ *
+ * @author David Zaslavsky
+ */
+class RequestContext {
+    /**
+     * Thrown by {@link #check()} when a request has been abandoned.
+     */
+    static class AbandonedException extends IOException {
+        private final boolean expired;
+
+        AbandonedException(boolean expired) {
+            super(expired ? "Request deadline passed" : "Connection closed");
+            this.expired = expired;
+        }
+
+        /**
+         * Returns {@code true} if the request was abandoned because its
+         * deadline passed, or {@code false} if its connection closed.
+         */
+        boolean isExpired() {
+            return expired;
+        }
+    }
+
+    private final AtomicBoolean disconnected;
+    // in terms of System.nanoTime(); only meaningful if hasDeadline is set
+    private final long deadline;
+    private final boolean hasDeadline;
+
+    /**
+     * Creates a new {@code RequestContext}, starting the clock on the deadline.
+     * @param disconnected set when the request's connection closes; shared by
+     *  every request from that connection
+     * @param timeoutMillis how long the request may take, or 0 for no deadline
+     */
+    RequestContext(AtomicBoolean disconnected, int timeoutMillis) {
+        this.disconnected = disconnected;
+        this.hasDeadline = timeoutMillis > 0;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Returns {@code true} if the request's connection has closed or its
+     * deadline has passed.
+     */
+    boolean isAbandoned() {
+        return disconnected.get() || isExpired();
+    }
+
+    private boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * Throws an {@link AbandonedException} if the request has been abandoned.
+     */
+    void check() throws AbandonedException {
+        if (disconnected.get()) {
+            throw new AbandonedException(false);
+        }
+        if (isExpired()) {
+            throw new AbandonedException(true);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/* RequestFramer.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the boundaries of requests in a buffer of bytes received from the
+ * Textwriter frontend.
+ *
+ * <p>The request layout is the one read by {@link RenderRequest#parse(java.io.BufferedReader)}:
+ * a mode byte followed by a mix of text lines and single characters. The
+ * framer walks that layout without decoding anything, so a transport can tell
+ * whether a whole request has arrived before handing it off for processing.
+ * Lines may end in <tt>\n</tt>, <tt>\r</tt> or <tt>\r\n</tt>, the same as
+ * {@link java.io.BufferedReader#readLine()}. Single-character fields are
+ * assumed to hold characters from the Basic Multilingual Plane.</p>
+ *
+ * <p>A connection that opens with {@link BinaryProtocol#MAGIC} uses the
+ * binary protocol instead, where every request carries its own length.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class RequestFramer {
+    /**
+     * Returned by {@link #frameLength(ByteBuffer)} when the buffer does not yet
+     * hold a complete request.
+     */
+    static final int INCOMPLETE = -1;
+
+    /** The protocol of a connection that hasn't sent anything yet */
+    static final int PROTOCOL_UNKNOWN = 0;
+    /** The original text-based protocol */
+    static final int PROTOCOL_V1 = 1;
+    /** The binary protocol described in {@link BinaryProtocol} */
+    static final int PROTOCOL_V2 = 2;
+
+    private RequestFramer() {}
+
+    /**
+     * Determines a connection's protocol from the first byte it sent. If that
+     * byte is {@link BinaryProtocol#MAGIC}, it is consumed; otherwise it is
+     * the mode byte of the first request and is left in the buffer.
+     * @param buf the buffer holding the start of the connection's data
+     * @return the protocol version, or {@link #PROTOCOL_UNKNOWN} if the
+     *  buffer is empty
+     */
+    static int negotiate(ByteBuffer buf) {
+        if (!buf.hasRemaining()) {
+            return PROTOCOL_UNKNOWN;
+        }
+        if ((buf.get(buf.position()) & 0xff) == BinaryProtocol.MAGIC) {
+            buf.get();
+            return PROTOCOL_V2;
+        }
+        return PROTOCOL_V1;
+    }
+
+    /**
+     * Returns the length in bytes of the request that starts at the buffer's
+     * position in the given protocol, or {@link #INCOMPLETE} if more bytes are
+     * needed. The buffer's position and limit are not changed.
+     * @param buf a buffer whose remaining bytes start with a request
+     * @param protocol the connection's protocol, as found by {@link #negotiate(ByteBuffer)}
+     * @return the number of bytes in the request
+     */
+    static int frameLength(ByteBuffer buf, int protocol) {
+        switch (protocol) {
+            case PROTOCOL_V1:
+                return frameLength(buf);
+            case PROTOCOL_V2:
+                return BinaryProtocol.frameLength(buf);
+            default:
+                return INCOMPLETE;
+        }
+    }
+
+    /**
+     * Returns the length in bytes of the request that starts at the buffer's
+     * position, or {@link #INCOMPLETE} if more bytes are needed. The buffer's
+     * position and limit are not changed.
+     * @param buf a buffer whose remaining bytes start with a mode byte
+     * @return the number of bytes in the request, including the mode byte
+     */
+    static int frameLength(ByteBuffer buf) {
+        int start = buf.position();
+        int end = buf.limit();
+        if (start >= end) {
+            return INCOMPLETE;
+        }
+        int p = start + 1;
+        switch (buf.get(start)) {
+            case TextwriterDaemon.FONT_LIST_MODE:
+            case TextwriterDaemon.STATS_MODE:
+                break;
+            case TextwriterDaemon.FONT_ADD_MODE:
+            case TextwriterDaemon.FONT_ADD_ASYNC_MODE:
+            case TextwriterDaemon.FONT_JOB_MODE:
+            case TextwriterDaemon.FONT_LIST_SINCE_MODE:
+                p = skipLine(buf, p, end);
+                break;
+            case TextwriterDaemon.RENDER_MODE:
+            case TextwriterDaemon.STREAM_RENDER_MODE:
+                p = skipRenderRequest(buf, p, end);
+                break;
+            case TextwriterDaemon.PARAGRAPH_MODE:
+                p = skipLine(buf, p, end); // font name
+                p = skipChars(buf, p, end, 3); // size, bold, italic
+                p = skipLine(buf, p, end); // background
+                p = skipLine(buf, p, end); // foreground
+                p = skipLine(buf, p, end); // width
+                p = skipChars(buf, p, end, 1); // alignment
+                p = skipLine(buf, p, end); // line spacing
+                p = skipText(buf, p, end);
+                break;
+            case TextwriterDaemon.MASK_MODE:
+                p = skipLine(buf, p, end); // font name
+                p = skipChars(buf, p, end, 4); // size, bold, italic, deflate
+                p = skipText(buf, p, end);
+                break;
+            case TextwriterDaemon.TAGGED_RENDER_MODE:
+                p = skipLine(buf, p, end); // request ID
+                p = skipRenderRequest(buf, p, end);
+                break;
+            case TextwriterDaemon.BATCH_RENDER_MODE:
+                p = skipBatchRequest(buf, p, end);
+                break;
+            default:
+                // an invalid mode is reported and skipped one byte at a time
+                break;
+        }
+        return p < 0 ? INCOMPLETE : p - start;
+    }
+
+    /**
+     * Skips the body of a render request.
+     * @return the index just past the request, or a negative number if the
+     *  request is incomplete
+     */
+    static int skipRenderRequest(ByteBuffer buf, int p, int end) {
+        if (p < 0) {
+            return INCOMPLETE;
+        }
+        p = skipLine(buf, p, end); // font name
+        p = skipChars(buf, p, end, 3); // size, bold, italic
+        p = skipLine(buf, p, end); // background
+        p = skipLine(buf, p, end); // foreground
+        return skipText(buf, p, end);
+    }
+
+    /**
+     * Skips the text at the end of a request: a character holding the number
+     * of lines, followed by the lines.
+     * @return the index just past the text, or a negative number if it is
+     *  incomplete
+     * @see RenderRequest#parseText(java.io.BufferedReader)
+     */
+    static int skipText(ByteBuffer buf, int p, int end) {
+        if (p < 0 || p >= end) {
+            return INCOMPLETE;
+        }
+        int nLines = charValue(buf, p, end);
+        p = skipChars(buf, p, end, 1);
+        while (nLines-- > 0 && p >= 0) {
+            p = skipLine(buf, p, end);
+        }
+        return p;
+    }
+
+    /**
+     * Skips the body of a batch render request.
+     * @return the index just past the request, or a negative number if the
+     *  request is incomplete
+     * @see BatchRenderRequest#parse(java.io.BufferedReader)
+     */
+    static int skipBatchRequest(ByteBuffer buf, int p, int end) {
+        if (p < 0) {
+            return INCOMPLETE;
+        }
+        p = skipLine(buf, p, end); // font name
+        p = skipChars(buf, p, end, 3); // size, bold, italic
+        p = skipLine(buf, p, end); // background
+        p = skipLine(buf, p, end); // foreground
+        p = skipChars(buf, p, end, 1); // sprite flag
+        int countStart = p;
+        p = skipLine(buf, p, end);
+        if (p < 0) {
+            return INCOMPLETE;
+        }
+        // a malformed count is reported by the parser, which reads no strings
+        StringBuilder digits = new StringBuilder();
+        for (int i = countStart; i < p && digits.length() <= BatchRenderRequest.MAX_COUNT_DIGITS; i++) {
+            byte b = buf.get(i);
+            if (b == '\r' || b == '\n') {
+                break;
+            }
+            digits.append((char)(b & 0xff));
+        }
+        int count = Math.max(BatchRenderRequest.parseCount(digits.toString()), 0);
+        while (count-- > 0 && p >= 0) {
+            p = skipLine(buf, p, end);
+        }
+        return p;
+    }
+
+    /**
+     * Skips one line of text, including its terminator.
+     * @return the index just past the line, or a negative number if the line
+     *  is incomplete
+     */
+    static int skipLine(ByteBuffer buf, int p, int end) {
+        if (p < 0) {
+            return INCOMPLETE;
+        }
+        for (; p < end; p++) {
+            byte b = buf.get(p);
+            if (b == '\n') {
+                return p + 1;
+            }
+            if (b == '\r') {
+                // can't tell yet whether this is a bare CR or the start of CRLF
+                if (p + 1 >= end) {
+                    return INCOMPLETE;
+                }
+                return buf.get(p + 1) == '\n' ? p + 2 : p + 1;
+            }
+        }
+        return INCOMPLETE;
+    }
+
+    /**
+     * Skips the given number of UTF-8 encoded characters.
+     * @return the index just past the characters, or a negative number if
+     *  they are incomplete
+     */
+    static int skipChars(ByteBuffer buf, int p, int end, int count) {
+        while (count-- > 0) {
+            if (p < 0 || p >= end) {
+                return INCOMPLETE;
+            }
+            int n = charLength(buf, p, end);
+            if (n < 0) {
+                return INCOMPLETE;
+            }
+            p += n;
+        }
+        return p;
+    }
+
+    /**
+     * Returns the number of bytes in the UTF-8 sequence starting at {@code p},
+     * or a negative number if the sequence is cut off by the end of the buffer.
+     * A malformed sequence counts as one byte, which is what the decoder
+     * replaces with U+FFFD.
+     */
+    private static int charLength(ByteBuffer buf, int p, int end) {
+        int lead = buf.get(p) & 0xff;
+        int n;
+        if (lead < 0x80) {
+            return 1;
+        }
+        else if (lead >= 0xc2 && lead <= 0xdf) {
+            n = 2;
+        }
+        else if (lead >= 0xe0 && lead <= 0xef) {
+            n = 3;
+        }
+        else {
+            return 1;
+        }
+        for (int i = 1; i < n; i++) {
+            if (p + i >= end) {
+                return INCOMPLETE;
+            }
+            if ((buf.get(p + i) & 0xc0) != 0x80) {
+                return 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes the UTF-8 character starting at {@code p}. The caller must
+     * already know that the whole character is in the buffer.
+     */
+    private static int charValue(ByteBuffer buf, int p, int end) {
+        int lead = buf.get(p) & 0xff;
+        int n = charLength(buf, p, end);
+        switch (n) {
+            case 1:
+                return lead < 0x80 ? lead : 0xfffd;
+            case 2:
+                return ((lead & 0x1f) << 6) | (buf.get(p + 1) & 0x3f);
+            case 3:
+                return ((lead & 0x0f) << 12) | ((buf.get(p + 1) & 0x3f) << 6) | (buf.get(p + 2) & 0x3f);
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/* SelectorServer.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package net.ellipsix.textwriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A transport that serves every frontend connection from a single selector
+ * thread.
+ *
+ * <p>The selector thread only moves bytes: it reads into each connection's
+ * request buffer, uses {@link RequestFramer} to find complete requests, and
+ * writes queued responses back out. Each complete request is handed to a
+ * worker pool, which runs {@link TextwriterDaemon#handleRequest} and queues
+ * the response on the connection. An idle connection costs nothing but its
+ * buffer.</p>
+ *
+ * <p>The response to an untagged request is queued piece by piece as the
+ * request handler flushes it, so a streamed image starts going out before
+ * it has been completely encoded.</p>
+ *
+ * <p>Tagged render requests on one connection are processed concurrently,
+ * up to {@link TextwriterDaemon#PIPELINE_DEPTH} at a time, and their
+ * responses are queued as they finish. Any other request is processed only
+ * once nothing else from its connection is in progress, so untagged responses
+ * come back in the order the requests were sent, the same as with the
+ * thread-per-connection transport.</p>
+ *
+ * <p>A render request is only handed to the worker pool once it has been
+ * admitted to {@link TextwriterDaemon#renderQueue}. If the queue is full, a
+ * binary protocol request is answered as overloaded on the spot, while a
+ * connection using the original protocol is set aside until a render
+ * finishes. When a connection closes, its outstanding requests are
+ * abandoned.</p>
+ *
+ * @author David Zaslavsky
+ */
+public class SelectorServer implements Runnable {
+    private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+    // connections whose state was changed by a worker and need attention from the selector thread
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+    // connections waiting for room in the render queue
+    private final Queue<Connection> admissionWaiters = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Creates a new {@code SelectorServer} listening on the given port.
+     * @param port the TCP port to listen on
+     * @param workers the pool that requests are processed on
+     */
+    public SelectorServer(int port, ExecutorService workers) throws IOException {
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the selector loop until the thread is interrupted.
+     */
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (Connection c = pending.poll(); c != null; c = pending.poll()) {
+                    c.resume();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection)key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            c.write();
+                        }
+                        if (key.isReadable()) {
+                            c.read();
+                        }
+                    }
+                    catch (IOException ioe) {
+                        logger.throwing("SelectorServer", "run", ioe);
+                        c.close();
+                    }
+                }
+            }
+        }
+        catch (IOException ioe) {
+            logger.throwing("SelectorServer", "run", ioe);
+        }
+        finally {
+            try {
+                selector.close();
+                server.close();
+            }
+            catch (IOException ioe) {
+                logger.throwing("SelectorServer", "run", ioe);
+            }
+            workers.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        logger.finest("Got a connection");
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection c = new Connection(ch);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        Metrics.connections.increment();
+    }
+
+    /**
+     * The state of one frontend connection. Apart from {@link #process(ByteBuffer, RequestContext, boolean, boolean)},
+     * which runs on a worker, all methods are called on the selector thread.
+     */
+    private class Connection {
+        final SocketChannel ch;
+        SelectionKey key;
+        // kept ready for reading from the channel
+        ByteBuffer in = ByteBuffer.allocate(TextwriterDaemon.INITIAL_REQUEST_BUFFER);
+        // responses waiting to be written, guarded by itself
+        final Queue<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        // whether an untagged request from this connection is being processed
+        volatile boolean busy = false;
+        // the number of tagged requests from this connection being processed
+        final AtomicInteger inFlight = new AtomicInteger();
+        // whether the next request is waiting for room in the render queue
+        boolean waiting = false;
+        // whether the connection is in admissionWaiters, so that it is only put in line once
+        final AtomicBoolean inLine = new AtomicBoolean();
+        // set when the connection closes, to abandon its outstanding requests
+        final AtomicBoolean disconnected = new AtomicBoolean();
+        // set when a request fails, so that the connection closes instead of leaving the client waiting
+        volatile boolean failed = false;
+        // set on the selector thread once the first byte arrives; read by workers afterwards
+        volatile int protocol = RequestFramer.PROTOCOL_UNKNOWN;
+
+        Connection(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                in = TextwriterDaemon.growRequestBuffer(in);
+                if (in == null) {
+                    logger.info("Request too large, closing connection");
+                    close();
+                    return;
+                }
+            }
+            int n = ch.read(in);
+            if (n < 0) {
+                logger.info("EOF on socket");
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * Starts processing as many complete requests as the ordering rules
+         * allow.
+         */
+        void dispatch() {
+            if (failed) {
+                closeWhenAnswered();
+                return;
+            }
+            in.flip();
+            if (protocol == RequestFramer.PROTOCOL_UNKNOWN) {
+                protocol = RequestFramer.negotiate(in);
+            }
+            waiting = false;
+            int length;
+            while (!busy && (length = RequestFramer.frameLength(in, protocol)) != RequestFramer.INCOMPLETE) {
+                final boolean pipelined = TextwriterDaemon.isPipelined(in, protocol);
+                if (pipelined ? inFlight.get() >= TextwriterDaemon.PIPELINE_DEPTH : inFlight.get() > 0) {
+                    break;
+                }
+                final boolean render = TextwriterDaemon.isRender(in, protocol);
+                if (render && protocol == RequestFramer.PROTOCOL_V2) {
+                    if (!TextwriterDaemon.renderQueue.tryAcquire()) {
+                        logger.info("Render queue full, rejecting request");
+                        ByteBuffer rejected = TextwriterDaemon.takeRequest(in, length);
+                        RequestCapture.record(rejected, protocol);
+                        byte[] overloaded = BinaryProtocol.overloadedResponse(rejected);
+                        synchronized (out) {
+                            out.add(ByteBuffer.wrap(overloaded));
+                        }
+                        continue;
+                    }
+                }
+                else if (render && !admit()) {
+                    waiting = true;
+                    break;
+                }
+                final ByteBuffer request = TextwriterDaemon.takeRequest(in, length);
+                RequestCapture.record(request, protocol);
+                final RequestContext context = TextwriterDaemon.newContext(request, protocol, disconnected);
+                if (pipelined) {
+                    inFlight.incrementAndGet();
+                }
+                else {
+                    busy = true;
+                }
+                workers.execute(new Runnable() {
+                    public void run() {
+                        process(request, context, pipelined, render);
+                    }
+                });
+            }
+            in.compact();
+            updateInterest();
+        }
+
+        /**
+         * Takes a place in the render queue, or else puts this connection in
+         * line to be resumed when a place comes free.
+         * @return {@code true} if the connection got a place
+         */
+        boolean admit() {
+            if (TextwriterDaemon.renderQueue.tryAcquire()) {
+                return true;
+            }
+            if (inLine.compareAndSet(false, true)) {
+                admissionWaiters.add(this);
+            }
+            // a render may have finished before this connection got in line
+            if (!TextwriterDaemon.renderQueue.tryAcquire()) {
+                return false;
+            }
+            // leave the line, so that the next release wakes a connection that is waiting
+            if (inLine.compareAndSet(true, false)) {
+                admissionWaiters.remove(this);
+            }
+            return true;
+        }
+
+        /**
+         * Runs a request on a worker thread and queues its response.
+         * @param render whether the request holds a place in the render queue
+         */
+        void process(ByteBuffer request, RequestContext context, boolean pipelined, boolean render) {
+            // a tagged response has to be queued all at once, so it isn't
+            // interleaved with the responses to other tagged requests
+            ResponseStream response = new ResponseStream(!pipelined);
+            try {
+                TextwriterDaemon.handleRequest(request, protocol, context, response);
+            }
+            catch (RequestContext.AbandonedException ae) {
+                logger.fine("Abandoned request: " + ae.getMessage());
+            }
+            catch (Exception e) {
+                // the original protocol has no way to report the failure
+                logger.log(Level.WARNING, "Request failed, closing connection", e);
+                failed = true;
+            }
+            finally {
+                if (render) {
+                    TextwriterDaemon.renderQueue.release();
+                    wakeAdmissionWaiter();
+                }
+            }
+            response.finish();
+            if (pipelined) {
+                inFlight.decrementAndGet();
+            }
+            else {
+                busy = false;
+            }
+            pending.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Resumes the first open connection that is waiting for room in the
+         * render queue.
+         */
+        private void wakeAdmissionWaiter() {
+            for (Connection c = admissionWaiters.poll(); c != null; c = admissionWaiters.poll()) {
+                // skip a connection that got in without being woken
+                if (c.inLine.compareAndSet(true, false) && c.key.isValid()) {
+                    pending.add(c);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Adds data to the queue of bytes to be written. This may be called
+         * from any thread.
+         */
+        void queue(byte[] data) {
+            synchronized (out) {
+                out.add(ByteBuffer.wrap(data));
+            }
+            pending.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Collects a response on a worker thread and queues it for writing.
+         */
+        private class ResponseStream extends ByteArrayOutputStream {
+            private final boolean streaming;
+
+            /**
+             * @param streaming whether to queue the data collected so far
+             *  each time the stream is flushed
+             */
+            ResponseStream(boolean streaming) {
+                this.streaming = streaming;
+            }
+
+            public void flush() {
+                if (streaming) {
+                    finish();
+                }
+            }
+
+            /**
+             * Queues any data that hasn't been queued yet.
+             */
+            void finish() {
+                if (count > 0) {
+                    queue(toByteArray());
+                    reset();
+                }
+            }
+        }
+
+        /**
+         * Picks up after a worker finishes a request.
+         */
+        void resume() {
+            if (key.isValid()) {
+                dispatch();
+            }
+        }
+
+        void write() throws IOException {
+            synchronized (out) {
+                while (!out.isEmpty()) {
+                    ByteBuffer b = out.peek();
+                    long start = System.nanoTime();
+                    int n = ch.write(b);
+                    Metrics.SOCKET_WRITE.recordSince(start);
+                    Metrics.bytesOut.add(n);
+                    if (b.hasRemaining()) {
+                        break;
+                    }
+                    out.remove();
+                }
+            }
+            dispatch();
+        }
+
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean writing;
+            synchronized (out) {
+                writing = !out.isEmpty();
+            }
+            boolean stalled = busy || waiting || inFlight.get() > 0;
+            int ops = 0;
+            if (!stalled || in.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writing) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Reads no more requests, and closes the connection once the
+         * responses to the ones in progress have been written.
+         */
+        private void closeWhenAnswered() {
+            boolean writing;
+            synchronized (out) {
+                writing = !out.isEmpty();
+            }
+            if (!writing && inFlight.get() == 0) {
+                close();
+            }
+            else {
+                key.interestOps(writing ? SelectionKey.OP_WRITE : 0);
+            }
+        }
+
+        void close() {
+            if (disconnected.getAndSet(true)) {
+                return;
+            }
+            Metrics.connections.decrement();
+            key.cancel();
+            try {
+                ch.close();
+            }
+            catch (IOException ioe) {
+                logger.throwing("SelectorServer", "close", ioe);
+            }
+        }
+    }
+}
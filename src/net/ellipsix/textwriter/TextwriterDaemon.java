@@ -25,30 +25,157 @@
 
 package net.ellipsix.textwriter;
 
+import java.awt.Font;
 import java.awt.FontFormatException;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * The main Textwriter daemon process that accepts connections and
  * reads and writes data.
+ *
+ * <p>The daemon is configured with system properties at startup:</p>
+ * <dl>
+ * <dt><tt>textwriter.server</tt></dt>
+ * <dd>the transport: <tt>nio</tt> (the default) multiplexes all connections on
+ * a {@link SelectorServer}; <tt>threads</tt> serves each connection on a
+ * thread from a fixed pool; <tt>virtual</tt> serves each connection on its
+ * own virtual thread, falling back to unpooled platform threads on a JVM
+ * without virtual threads</dd>
+ * <dt><tt>textwriter.port</tt></dt>
+ * <dd>the TCP port to listen on, by default {@value #DEFAULT_PORT}</dd>
+ * <dt><tt>textwriter.threads</tt></dt>
+ * <dd>the size of the connection pool for <tt>threads</tt> (default 5) or of
+ * the worker pool for <tt>nio</tt> (default one per processor)</dd>
+ * <dt><tt>textwriter.renderPermits</tt></dt>
+ * <dd>how many renders may run at once in any transport, by default one per
+ * processor</dd>
+ * <dt><tt>textwriter.pipelineDepth</tt></dt>
+ * <dd>how many {@link #TAGGED_RENDER_MODE} requests from one connection may be
+ * in progress at once, by default {@value #DEFAULT_PIPELINE_DEPTH}</dd>
+ * <dt><tt>textwriter.queueLimit</tt></dt>
+ * <dd>how many render requests from all connections may be queued or in
+ * progress at once, by default {@value #DEFAULT_QUEUE_LIMIT}</dd>
+ * <dt><tt>textwriter.capture</tt></dt>
+ * <dd>a file to record every incoming request to, for replay with
+ * {@link LoadGenerator}; see {@link RequestCapture}</dd>
+ * <dt><tt>textwriter.cacheBytes</tt></dt>
+ * <dd>the byte budget of the {@link RenderCache}, by default
+ * {@value RenderCache#DEFAULT_BUDGET}, or 0 to render every request</dd>
+ * <dt><tt>textwriter.atlasBytes</tt></dt>
+ * <dd>the byte budget of the {@link GlyphAtlas}es that short strings are
+ * rendered from, by default {@value GlyphAtlas#DEFAULT_BUDGET}, or 0 to lay
+ * out every string</dd>
+ * <dt><tt>textwriter.maxPixels</tt></dt>
+ * <dd>the largest image, in pixels, that will be rendered, and the most
+ * pixels a whole batch may render, by default
+ * {@value RenderRequest#DEFAULT_MAX_PIXELS}; a binary protocol render that
+ * would be larger gets {@link BinaryProtocol#STATUS_FAILED}</dd>
+ * <dt><tt>textwriter.rasterPoolMax</tt></dt>
+ * <dd>the largest raster array, in bytes, that each thread keeps for reuse,
+ * by default {@value RasterPool#DEFAULT_MAX_CLASS_SIZE}</dd>
+ * <dt><tt>textwriter.layoutCacheSize</tt></dt>
+ * <dd>how many text layouts to keep for reuse, by default
+ * {@value RenderRequest#DEFAULT_LAYOUT_CACHE_SIZE}, or 0 for none</dd>
+ * <dt><tt>textwriter.pngLevel</tt></dt>
+ * <dd>the deflate level of encoded images, from 0 to 9, by default
+ * {@value PngEncoder#DEFAULT_LEVEL}</dd>
+ * <dt><tt>textwriter.pngFilter</tt></dt>
+ * <dd>the PNG row filter: <tt>none</tt>, <tt>sub</tt>, <tt>up</tt>,
+ * <tt>average</tt>, <tt>paeth</tt> or <tt>adaptive</tt>; by default images
+ * with a palette are not filtered and others are filtered adaptively</dd>
+ * <dt><tt>textwriter.parallelEncodePixels</tt></dt>
+ * <dd>the size, in pixels, from which an image is compressed on all processors
+ * at once, by default {@value PngEncoder#DEFAULT_PARALLEL_PIXELS}, or 0 to
+ * compress every image on one thread</dd>
+ * <dt><tt>textwriter.fontIndex</tt></dt>
+ * <dd>a file to record the families and attributes of loaded font files in,
+ * so that the daemon gets them back at startup without parsing every file
+ * again; see {@link FontIndex}</dd>
+ * <dt><tt>textwriter.lazyFonts</tt></dt>
+ * <dd>whether added fonts are only created when first used, with just their
+ * family names read when they are added; <tt>true</tt> by default</dd>
+ * <dt><tt>textwriter.watchFonts</tt></dt>
+ * <dd>whether the directories fonts were added from are watched, so that
+ * font files added, changed or deleted there are picked up without a restart;
+ * <tt>false</tt> by default</dd>
+ * <dt><tt>textwriter.fontWatchDelay</tt></dt>
+ * <dd>how long, in milliseconds, changes to watched font directories must
+ * stop for before they are applied, by default
+ * {@value FontWatcher#DEFAULT_DELAY}</dd>
+ * </dl>
+ * <p>When the render queue is full, a render request in the binary protocol
+ * is answered at once with {@link BinaryProtocol#STATUS_OVERLOADED}. The
+ * original protocol has no way to report that, so its requests wait to be
+ * admitted and the connection is not read from in the meantime. A render is
+ * abandoned once its deadline passes; only the binary protocol can set a
+ * deadline. It is also abandoned, whether queued or in progress, once its
+ * connection closes, as long as the connection is being read when that
+ * happens. The <tt>nio</tt> server always reads, but the blocking servers
+ * only keep reading while requests that are processed concurrently are
+ * rendered: tagged requests, and render, paragraph and mask requests in the
+ * binary protocol. Any other request is handled on the connection's own
+ * thread, so a close is only seen once it has been answered.</p>
+ * <p>A {@link #TAGGED_RENDER_MODE} request is a render request preceded by a
+ * line holding a decimal request ID. Tagged requests from one connection are
+ * rendered concurrently, and each response is written as soon as it is ready
+ * as the four-byte ID, the four-byte image size and the image data. Any other
+ * request waits until all tagged requests before it have been answered, so
+ * its response is never interleaved with theirs.</p>
+ * <p>A {@link #STREAM_RENDER_MODE} request is laid out like a render request,
+ * but the image is streamed to the connection as it is encoded, framed by a
+ * {@link ChunkedOutputStream}, instead of being encoded in full first to find
+ * its size. A cached image is streamed from the cache, but a streamed render
+ * is not added to it.</p>
+ * <p>A {@link #STATS_MODE} request is just the mode byte. The response lists
+ * the daemon's counters and the latency of each stage of request handling,
+ * as written by {@link Metrics#writeStats(OutputStream)}.</p>
+ * <p>A {@link #MASK_MODE} request is laid out like a render request without
+ * the colors, and with a character after the font fields that is 1 to
+ * deflate the result or 0 to send it raw. The response is the text's
+ * {@link CoverageMask}, which carries its own size.</p>
+ * <p>A {@link #PARAGRAPH_MODE} request renders a block of text as laid out by
+ * {@link ParagraphLayout}, optionally wrapped to a width, aligned and spaced
+ * as described in {@link RenderRequest#parseParagraph(BufferedReader)}. The
+ * response is the same as for a render request. Text with line breaks in a
+ * plain render request is laid out the same way, with no wrapping.</p>
+ * <p>A {@link #FONT_ADD_ASYNC_MODE} request is laid out like a
+ * {@link #FONT_ADD_MODE} request, but the fonts are loaded in the background
+ * and the response is just the four-byte ID of the {@link FontLoadJob}. A
+ * {@link #FONT_JOB_MODE} request is a line holding a job ID in decimal, and
+ * the response is the job's progress and errors as written by
+ * {@link FontLoadJob#writeStatus(OutputStream)}, or just a blank line if there
+ * is no such job.</p>
+ * <p>A {@link #FONT_LIST_SINCE_MODE} request is a line holding, in decimal, the
+ * version of the font list that the client last saw, or 0 for none. The
+ * response is a line holding the current version, a line holding 0 if only the
+ * fonts added since the client's version are listed or 1 if all fonts are, and
+ * then the listing itself, laid out as for {@link #FONT_LIST_MODE}. All fonts
+ * are listed if some have been taken out since the client's version or it is
+ * not one the daemon has had.</p>
+ * <p>All transports frame requests with {@link RequestFramer} and process
+ * them with {@link #handleRequest(ByteBuffer, int, OutputStream)}. A
+ * connection whose first byte is {@link BinaryProtocol#MAGIC} speaks the
+ * binary protocol described in {@link BinaryProtocol} from then on; any other
+ * connection speaks the original text-based protocol.</p>
  * @author David Zaslavsky
  */
 public class TextwriterDaemon implements Runnable {
@@ -56,22 +183,78 @@ public class TextwriterDaemon implements Runnable {
     public static final int RENDER_MODE = 0;
     public static final int FONT_LIST_MODE = 1;
     public static final int FONT_ADD_MODE = 2;
+    public static final int TAGGED_RENDER_MODE = 3;
+    public static final int BATCH_RENDER_MODE = 4;
+    public static final int STREAM_RENDER_MODE = 5;
+    public static final int STATS_MODE = 6;
+    public static final int MASK_MODE = 7;
+    public static final int PARAGRAPH_MODE = 8;
+    public static final int FONT_ADD_ASYNC_MODE = 9;
+    public static final int FONT_JOB_MODE = 10;
+    public static final int FONT_LIST_SINCE_MODE = 11;
     
     public static final Charset TRANSFER_CHARSET = Charset.forName("UTF-8");
     public static final FontCollection fc = FontCollection.getInstance();
 
+    public static final int DEFAULT_PORT = 47251;
+    /** The size of the buffer each connection starts with for incoming requests */
+    static final int INITIAL_REQUEST_BUFFER = 4096;
+    /** The largest request a connection will buffer before giving up on it */
+    static final int MAX_REQUEST_SIZE = 1 << 20;
+    /** The largest chunk of a streamed response */
+    static final int CHUNK_SIZE = 8192;
+    public static final int DEFAULT_PIPELINE_DEPTH = 16;
+    /** How many tagged requests from one connection may be in progress at once */
+    static final int PIPELINE_DEPTH = Integer.getInteger("textwriter.pipelineDepth", DEFAULT_PIPELINE_DEPTH);
+    public static final int DEFAULT_QUEUE_LIMIT = 64;
+    private static final int QUEUE_LIMIT = Integer.getInteger("textwriter.queueLimit", DEFAULT_QUEUE_LIMIT);
+
     private static final Logger logger = Logger.getLogger("net.ellipsix.textwriter");
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    // Limits the number of renders in progress so that CPU-bound rasterization
+    // doesn't oversubscribe the cores, however many connections are being served
+    private static final Semaphore renderPermits = new Semaphore(Integer.getInteger("textwriter.renderPermits", PROCESSORS));
+    // One permit for each render request that may be queued or in progress.
+    // Transports take a permit before queueing a render and release it when
+    // the render is done or abandoned.
+    static final Semaphore renderQueue = new Semaphore(QUEUE_LIMIT);
+    private static final RenderCache cache = RenderCache.getInstance();
+    /** The largest encoding buffer a thread keeps for its next render */
+    private static final int MAX_ENCODE_BUFFER = 1 << 20;
+    // Each thread reuses one buffer to encode the images it renders
+    private static final ThreadLocal<ByteArrayOutputStream> encodeBuffer = new ThreadLocal<ByteArrayOutputStream>() {
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(CHUNK_SIZE);
+        }
+    };
+    // Each thread reuses one buffer for the chunks of every response it streams
+    private static final ThreadLocal<byte[]> chunkBuffer = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
     
     public static void main(String[] args) {
         logger.fine("Starting Textwriter");
-        ExecutorService executor = Executors.newFixedThreadPool(5); // TODO: configure this value
+        String server = System.getProperty("textwriter.server", "nio");
+        int port = Integer.getInteger("textwriter.port", DEFAULT_PORT);
+        logger.config("Allowing " + renderPermits.availablePermits() + " concurrent renders");
         try {
-            logger.finer("Opening ServerSocket on port 47521");
-            ServerSocket ssock = new ServerSocket(47251);
-            while (true) {
-                Socket sock = ssock.accept();
-                logger.finest("Got a connection");
-                executor.execute(new TextwriterDaemon(sock));
+            if ("threads".equals(server)) {
+                int threads = Integer.getInteger("textwriter.threads", 5);
+                logger.finer("Serving connections on a pool of " + threads + " threads");
+                runBlocking(port, Executors.newFixedThreadPool(threads), Executors.newFixedThreadPool(PROCESSORS));
+            }
+            else if ("virtual".equals(server)) {
+                logger.finer("Serving connections on virtual threads");
+                ExecutorService executor = newVirtualThreadExecutor();
+                runBlocking(port, executor, executor);
+            }
+            else {
+                int workers = Integer.getInteger("textwriter.threads", PROCESSORS);
+                logger.finer("Starting selector server on port " + port + " with " + workers + " workers");
+                new SelectorServer(port, Executors.newFixedThreadPool(workers)).run();
             }
         }
         catch (IOException ioe) {
@@ -79,105 +262,545 @@ public class TextwriterDaemon implements Runnable {
             System.exit(1);
         }
     }
+
+    /**
+     * Accepts connections and runs a blocking {@code TextwriterDaemon} for
+     * each one on the given executor.
+     * @param executor runs the connections
+     * @param workers runs tagged requests
+     */
+    private static void runBlocking(int port, ExecutorService executor, Executor workers) throws IOException {
+        logger.finer("Opening ServerSocket on port " + port);
+        ServerSocket ssock = new ServerSocket(port);
+        while (true) {
+            Socket sock = ssock.accept();
+            logger.finest("Got a connection");
+            executor.execute(new TextwriterDaemon(sock, workers));
+        }
+    }
+    
+    /**
+     * Returns an executor that starts a new virtual thread for each task.
+     * Virtual threads are looked up reflectively so that the daemon still
+     * builds and runs on older JVMs, where this falls back to an unbounded
+     * pool of platform threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException roe) {
+            logger.warning("Virtual threads are not available, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
     
     private Socket sock;
+    private Executor workers;
+    // One permit for each tagged request that may be in progress
+    private Semaphore pipeline = new Semaphore(PIPELINE_DEPTH);
+    // Set when the connection closes, to abandon its outstanding requests
+    private AtomicBoolean disconnected = new AtomicBoolean();
             
-    private TextwriterDaemon(Socket sock) {
+    private TextwriterDaemon(Socket sock, Executor workers) {
         this.sock = sock;
+        this.workers = workers;
     }
             
     public void run() {
         logger.info("Starting Textwriter thread");
+        Metrics.connections.increment();
         try{
-            BufferedReader bfin = new BufferedReader(new InputStreamReader(sock.getInputStream(), TRANSFER_CHARSET));
-            OutputStream out = sock.getOutputStream();
-            BufferedWriter bfout = new BufferedWriter(new OutputStreamWriter(out, TRANSFER_CHARSET));
+            InputStream in = sock.getInputStream();
+            final OutputStream out = new BufferedOutputStream(new Metrics.MeteredOutputStream(sock.getOutputStream()));
+            // the buffer is kept ready for reading from the socket
+            ByteBuffer buf = ByteBuffer.allocate(INITIAL_REQUEST_BUFFER);
+            int protocol = RequestFramer.PROTOCOL_UNKNOWN;
             readloop:
             while (true) {
-                // read a request
-                int mode = bfin.read();
-                switch (mode) {
-                    case FONT_LIST_MODE:
-                        // list all fonts known to the system
-                        logger.fine("Listing fonts");
-                        Collection<FontCollection.TaggedFont> fonts = fc.getAllFonts();
-                        for (FontCollection.TaggedFont tf : fonts) {
-                            bfout.write(tf.getFont().getFamily() + "\n");
-                            Map<String,String> attrs = tf.getAttributes();
-                            for (String k : attrs.keySet()) {
-                                String v = attrs.get(k);
-                                bfout.write(k + "=" + v + "\n");
+                // process every complete request that has been read
+                buf.flip();
+                if (protocol == RequestFramer.PROTOCOL_UNKNOWN) {
+                    protocol = RequestFramer.negotiate(buf);
+                }
+                final int version = protocol;
+                int length;
+                while ((length = RequestFramer.frameLength(buf, version)) != RequestFramer.INCOMPLETE) {
+                    final ByteBuffer request = takeRequest(buf, length);
+                    RequestCapture.record(request, version);
+                    final RequestContext context = newContext(request, version, disconnected);
+                    final boolean render = isRender(request, version);
+                    if (render) {
+                        if (version == RequestFramer.PROTOCOL_V2) {
+                            if (!renderQueue.tryAcquire()) {
+                                logger.info("Render queue full, rejecting request");
+                                synchronized (out) {
+                                    out.write(BinaryProtocol.overloadedResponse(request));
+                                    out.flush();
+                                }
+                                continue;
                             }
                         }
-                        bfout.write("\n");
-                        bfout.flush();
-                        break;
-                    case FONT_ADD_MODE:
-                        // add a new font from a file or directory
-                        logger.fine("Adding fonts");
-                        String filename = bfin.readLine();
-                        File file = new File(filename);
-                        if (file.canRead() || file.isDirectory()) {
-                            try {
-                                if (file.isDirectory()) { // TODO: maybe incorporate this choice into loadFontsRecursive()
-                                    fc.loadFontsRecursive(file);
+                        else {
+                            renderQueue.acquireUninterruptibly();
+                        }
+                    }
+                    if (isPipelined(request, version)) {
+                        pipeline.acquireUninterruptibly();
+                        workers.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    ByteArrayOutputStream response = new ByteArrayOutputStream();
+                                    handleRequest(request, version, context, response);
+                                    synchronized (out) {
+                                        response.writeTo(out);
+                                        out.flush();
+                                    }
                                 }
-                                else {
-                                    fc.loadFonts(file);
+                                catch (RequestContext.AbandonedException ae) {
+                                    logger.fine("Abandoned request: " + ae.getMessage());
+                                }
+                                catch (Exception e) {
+                                    // the original protocol has no way to report the failure
+                                    logger.log(Level.WARNING, "Request failed, closing connection", e);
+                                    closeSocket();
+                                }
+                                finally {
+                                    if (render) {
+                                        renderQueue.release();
+                                    }
+                                    pipeline.release();
                                 }
-                                logger.finer("Loaded fonts from " + file.getPath());
-                                out.write(0); // success
-                            }
-                            catch (IOException ioe) {
-                                logger.throwing("TextwriterDaemon", "run", ioe);
-                                out.write(1);
                             }
-                            catch (FontFormatException ffe) {
-                                logger.throwing("TextwriterDaemon", "run", ffe);
-                                out.write(1);
+                        });
+                    }
+                    else {
+                        // wait for every tagged request to be answered first
+                        pipeline.acquireUninterruptibly(PIPELINE_DEPTH);
+                        try {
+                            synchronized (out) {
+                                handleRequest(request, version, context, out);
+                                out.flush();
                             }
                         }
-                        else {
-                            logger.info("Unreadable file " + file.getPath());
-                            out.write(1); // failure
+                        finally {
+                            if (render) {
+                                renderQueue.release();
+                            }
+                            pipeline.release(PIPELINE_DEPTH);
                         }
-                        out.flush();
-                        break;
-                    case RENDER_MODE:
-                        // render text
-                        logger.fine("Rendering text");
-                        RenderRequest req = RenderRequest.parse(bfin);
-                        logger.finest("Successfully parsed request");
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        req.write(baos);
-                        int count = baos.size();
-                        // write four bytes for the image size
-                        logger.finest("Writing 4 bytes");
-                        out.write(count >> 24);
-                        out.write(count >> 16);
-                        out.write(count >> 8);
-                        out.write(count);
-                        // write the image data
-                        logger.finest("Writing " + count + " bytes of image data");
-                        baos.writeTo(out);
-                        out.flush();
-                        logger.finest("Done writing image data");
-                        break;
-                    case -1:
-                        // EOF
-                        logger.info("EOF on socket");
+                    }
+                }
+                buf.compact();
+                if (!buf.hasRemaining()) {
+                    buf = growRequestBuffer(buf);
+                    if (buf == null) {
+                        logger.info("Request too large, closing connection");
                         break readloop;
-                    default:
-                        logger.info("Invalid mode " + String.valueOf(mode));
-                        break;
+                    }
+                }
+                // read more of a request
+                int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                if (n < 0) {
+                    // EOF
+                    logger.info("EOF on socket");
+                    break readloop;
                 }
+                buf.position(buf.position() + n);
             }
         }
         catch (IOException ioe) {
             logger.throwing("TextwriterDaemon", "run", ioe);
         }
+        catch (RuntimeException re) {
+            logger.log(Level.WARNING, "Request failed, closing connection", re);
+        }
+        finally {
+            // abandon anything still in progress and wait for it to stop
+            disconnected.set(true);
+            pipeline.acquireUninterruptibly(PIPELINE_DEPTH);
+            closeSocket();
+            Metrics.connections.decrement();
+        }
         // quit and return
     }
+
+    private void closeSocket() {
+        try {
+            sock.close();
+        }
+        catch (IOException ioe) {
+            logger.throwing("TextwriterDaemon", "closeSocket", ioe);
+        }
+    }
+
+    /**
+     * Returns a buffer with twice the capacity of the given one and the same
+     * contents, or {@code null} if that would exceed {@link #MAX_REQUEST_SIZE}.
+     * @param buf a full buffer, ready for writing
+     */
+    static ByteBuffer growRequestBuffer(ByteBuffer buf) {
+        if (buf.capacity() >= MAX_REQUEST_SIZE) {
+            return null;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(buf.capacity() * 2, MAX_REQUEST_SIZE));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * Copies the request at the buffer's position into a new heap buffer and
+     * advances the position past it.
+     * @param buf the buffer holding the request
+     * @param length the length of the request, as found by {@link RequestFramer#frameLength(ByteBuffer, int)}
+     */
+    static ByteBuffer takeRequest(ByteBuffer buf, int length) {
+        ByteBuffer src = buf.slice();
+        src.limit(length);
+        ByteBuffer request = ByteBuffer.allocate(length);
+        request.put(src);
+        request.flip();
+        buf.position(buf.position() + length);
+        return request;
+    }
+
+    /**
+     * Returns {@code true} if the request at the buffer's position can be
+     * processed concurrently with other requests from the same connection.
+     * @param protocol the connection's protocol version
+     */
+    static boolean isPipelined(ByteBuffer request, int protocol) {
+        if (protocol == RequestFramer.PROTOCOL_V2) {
+            return BinaryProtocol.isPipelined(request);
+        }
+        return request.get(request.position()) == TAGGED_RENDER_MODE;
+    }
+
+    /**
+     * Returns {@code true} if the request at the buffer's position renders
+     * text, and so has to be admitted to the render queue.
+     * @param protocol the connection's protocol version
+     */
+    static boolean isRender(ByteBuffer request, int protocol) {
+        int mode = request.get(request.position());
+        if (protocol == RequestFramer.PROTOCOL_V2) {
+            return mode == RENDER_MODE || mode == MASK_MODE || mode == PARAGRAPH_MODE;
+        }
+        return mode == RENDER_MODE || mode == TAGGED_RENDER_MODE || mode == BATCH_RENDER_MODE || mode == STREAM_RENDER_MODE
+                || mode == MASK_MODE || mode == PARAGRAPH_MODE;
+    }
+
+    /**
+     * Creates the context for a request that has just been received, starting
+     * the clock on its deadline if it has one.
+     * @param disconnected the flag that is set when the request's connection closes
+     */
+    static RequestContext newContext(ByteBuffer request, int protocol, AtomicBoolean disconnected) {
+        int timeout = protocol == RequestFramer.PROTOCOL_V2 ? BinaryProtocol.timeoutMillis(request) : 0;
+        return new RequestContext(disconnected, timeout);
+    }
+
+    /**
+     * Processes one complete request and writes the response to the given
+     * stream. The caller is responsible for flushing the stream.
+     * @param request a heap buffer holding exactly one request, as delimited
+     *  by {@link RequestFramer#frameLength(ByteBuffer, int)}
+     * @param protocol the connection's protocol version
+     * @param context tells whether the request has been abandoned
+     * @param out the stream to write the response to
+     * @throws RequestContext.AbandonedException if the request was abandoned
+     *  before a response was written
+     */
+    static void handleRequest(ByteBuffer request, int protocol, RequestContext context, OutputStream out) throws IOException {
+        Metrics.requests.increment();
+        if (protocol == RequestFramer.PROTOCOL_V2) {
+            BinaryProtocol.handleRequest(request, context, out);
+            return;
+        }
+        int mode = request.get();
+        BufferedReader bfin = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(request.array(), request.arrayOffset() + request.position(), request.remaining()),
+                TRANSFER_CHARSET));
+        switch (mode) {
+            case FONT_LIST_MODE:
+                // list all fonts known to the system
+                writeFontList(out);
+                break;
+            case STATS_MODE:
+                // report the daemon's metrics
+                Metrics.writeStats(out);
+                break;
+            case FONT_ADD_MODE:
+                // add a new font from a file or directory
+                out.write(addFonts(bfin.readLine()) ? 0 : 1);
+                break;
+            case FONT_ADD_ASYNC_MODE:
+                // start adding fonts and answer with the job ID straight away
+                writeInt(out, startAddFonts(bfin.readLine()));
+                break;
+            case FONT_LIST_SINCE_MODE:
+                // list the fonts added since the version the client last saw
+                String since = bfin.readLine();
+                FontCollection.Listing listing;
+                try {
+                    listing = fc.getListingSince(Long.parseLong(since));
+                }
+                catch (NumberFormatException nfe) {
+                    throw new IOException("Invalid font list version " + since);
+                }
+                logger.fine("Listing fonts since version " + since);
+                out.write((listing.version + "\n" + (listing.complete ? 1 : 0) + "\n").getBytes(TRANSFER_CHARSET));
+                out.write(listing.data);
+                break;
+            case FONT_JOB_MODE:
+                // report the progress of a background font load
+                String jobId = bfin.readLine();
+                FontLoadJob job;
+                try {
+                    job = FontLoadJob.get(Integer.parseInt(jobId));
+                }
+                catch (NumberFormatException nfe) {
+                    throw new IOException("Invalid job ID " + jobId);
+                }
+                if (job == null) {
+                    out.write('\n');
+                }
+                else {
+                    job.writeStatus(out);
+                }
+                break;
+            case TAGGED_RENDER_MODE:
+                // render text and tag the response so it can be sent out of order
+                String tag = bfin.readLine();
+                int id;
+                try {
+                    id = Integer.parseInt(tag);
+                }
+                catch (NumberFormatException nfe) {
+                    throw new IOException("Invalid request ID " + tag);
+                }
+                logger.fine("Rendering text for request " + id);
+                byte[] tagged = renderImage(RenderRequest.parse(bfin), context);
+                writeInt(out, id);
+                writeInt(out, tagged.length);
+                out.write(tagged);
+                break;
+            case BATCH_RENDER_MODE:
+                // render many strings in the same font
+                logger.fine("Rendering batch");
+                BatchRenderRequest batch = BatchRenderRequest.parse(bfin);
+                context.check();
+                // the whole batch counts as one render, however many threads it uses
+                renderPermits.acquireUninterruptibly();
+                try {
+                    batch.write(out, context);
+                }
+                finally {
+                    renderPermits.release();
+                }
+                break;
+            case STREAM_RENDER_MODE:
+                // render text and stream the image as it is encoded
+                logger.fine("Rendering text to a stream");
+                RenderRequest streamed = RenderRequest.parse(bfin);
+                ChunkedOutputStream chunks = new ChunkedOutputStream(out, chunkBuffer.get());
+                context.check();
+                byte[] cached = cache.get(streamed.getCacheKey());
+                if (cached != null) {
+                    chunks.write(cached);
+                }
+                else {
+                    renderPermits.acquireUninterruptibly();
+                    try {
+                        context.check();
+                        streamed.getImage();
+                        context.check();
+                        streamed.write(chunks);
+                    }
+                    finally {
+                        streamed.recycle();
+                        renderPermits.release();
+                    }
+                }
+                chunks.finish();
+                break;
+            case MASK_MODE:
+                // render the coverage of text, for the client to colorize
+                logger.fine("Rendering coverage mask");
+                long start = System.nanoTime();
+                Font maskFont = RenderRequest.parseFont(bfin);
+                boolean deflate = bfin.read() != 0;
+                String maskText = RenderRequest.parseText(bfin);
+                Metrics.PARSE.recordSince(start);
+                out.write(renderMask(maskText, maskFont, deflate, context));
+                break;
+            case RENDER_MODE:
+            case PARAGRAPH_MODE:
+                // render text
+                logger.fine("Rendering text");
+                RenderRequest req = mode == PARAGRAPH_MODE ? RenderRequest.parseParagraph(bfin) : RenderRequest.parse(bfin);
+                logger.finest("Successfully parsed request");
+                byte[] image = renderImage(req, context);
+                int count = image.length;
+                // write four bytes for the image size
+                logger.finest("Writing 4 bytes");
+                writeInt(out, count);
+                // write the image data
+                logger.finest("Writing " + count + " bytes of image data");
+                out.write(image);
+                logger.finest("Done writing image data");
+                break;
+            default:
+                logger.info("Invalid mode " + String.valueOf(mode));
+                break;
+        }
+    }
+
+    /**
+     * Writes the names and attributes of all known fonts, one font name line
+     * followed by a <tt>key=value</tt> line for each attribute, and ends the
+     * list with a blank line. The listing is encoded once for each version of
+     * the {@link FontCollection}.
+     */
+    static void writeFontList(OutputStream out) throws IOException {
+        logger.fine("Listing fonts");
+        out.write(fc.getListing());
+    }
+
+    /**
+     * Adds the fonts in a file, or in a directory and its subdirectories.
+     * @return {@code true} if the fonts were loaded
+     */
+    static boolean addFonts(String filename) {
+        logger.fine("Adding fonts");
+        File file = new File(filename);
+        if (file.canRead() || file.isDirectory()) {
+            try {
+                if (file.isDirectory()) { // TODO: maybe incorporate this choice into loadFontsRecursive()
+                    fc.loadFontsRecursive(file);
+                }
+                else {
+                    fc.loadFonts(file);
+                }
+                logger.finer("Loaded fonts from " + file.getPath());
+                return true;
+            }
+            catch (IOException ioe) {
+                logger.throwing("TextwriterDaemon", "addFonts", ioe);
+            }
+            catch (FontFormatException ffe) {
+                logger.throwing("TextwriterDaemon", "addFonts", ffe);
+            }
+        }
+        else {
+            logger.info("Unreadable file " + file.getPath());
+        }
+        return false;
+    }
+
+    /**
+     * Starts adding the fonts in a file, or in a directory and its
+     * subdirectories, in the background.
+     * @return the ID of the {@link FontLoadJob}
+     */
+    static int startAddFonts(String filename) {
+        logger.fine("Adding fonts in the background");
+        File file = new File(filename);
+        return fc.startLoad(file, file.isDirectory()).getId();
+    }
+
+    /**
+     * Returns the encoded image for a request, from the {@link RenderCache}
+     * if it is there, or else by rendering and encoding it, waiting if the
+     * maximum number of renders are already in progress. A request that has
+     * to be rendered is checked for abandonment before and after waiting and
+     * before encoding, and the result is added to the cache.
+     * @return the encoded image, which must not be modified
+     */
+    static byte[] renderImage(RenderRequest req, RequestContext context) throws IOException {
+        RenderCache.Key key = req.getCacheKey();
+        byte[] image = cache.get(key);
+        if (image != null) {
+            return image;
+        }
+        ByteArrayOutputStream baos = encodeBuffer.get();
+        baos.reset();
+        context.check();
+        renderPermits.acquireUninterruptibly();
+        try {
+            context.check();
+            req.getImage();
+            context.check();
+            req.write(baos);
+        }
+        finally {
+            req.recycle();
+            renderPermits.release();
+        }
+        image = baos.toByteArray();
+        if (baos.size() > MAX_ENCODE_BUFFER) {
+            // don't hold on to the buffer for an unusually large image
+            encodeBuffer.remove();
+        }
+        cache.put(key, image);
+        return image;
+    }
+
+    /**
+     * Renders the coverage mask of some text, holding a render permit while
+     * it is rendered and encoded.
+     * @param deflate whether to compress the coverage
+     * @return the mask as written by {@link CoverageMask#write(OutputStream, boolean)}
+     * @throws RequestContext.AbandonedException if the request was abandoned
+     */
+    static byte[] renderMask(String text, Font font, boolean deflate, RequestContext context) throws IOException {
+        ByteArrayOutputStream baos = encodeBuffer.get();
+        baos.reset();
+        context.check();
+        renderPermits.acquireUninterruptibly();
+        try {
+            context.check();
+            CoverageMask mask = CoverageMask.render(text, font);
+            context.check();
+            mask.write(baos, deflate);
+        }
+        finally {
+            renderPermits.release();
+        }
+        byte[] result = baos.toByteArray();
+        if (baos.size() > MAX_ENCODE_BUFFER) {
+            encodeBuffer.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of render requests that are queued or in progress.
+     */
+    static int renderQueueDepth() {
+        return QUEUE_LIMIT - renderQueue.availablePermits();
+    }
+
+    /**
+     * Writes a four-byte big-endian integer.
+     */
+    static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    /**
+     * Stores a four-byte big-endian integer in an array.
+     */
+    static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte)(value >>> 24);
+        b[off + 1] = (byte)(value >>> 16);
+        b[off + 2] = (byte)(value >>> 8);
+        b[off + 3] = (byte)value;
+    }
     
     protected void finalize() {
         try {
@@ -0,0 +1,135 @@
+/* TrueTypeNames.java */
+
+/*
+ * The content of this file is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this file; if not, write to
+ *
+ * Free Software Foundation, Inc.
+ * 59 Temple Place, Suite 330
+ * Boston, MA 02111-1307 USA
+ *
+ * or download the license from the Free Software Foundation website at
+ *
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+
+package net.ellipsix.textwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the family name of a TrueType font straight from the <tt>name</tt>
+ * table of its file, without creating a {@link java.awt.Font}.
+ *
+ * <p>Only the table directory and the <tt>name</tt> table are read, so this
+ * is much cheaper than {@link java.awt.Font#createFont(int, File)}, which sets
+ * up a scaler for the whole font. The name is chosen the way the JDK chooses
+ * the family of a TrueType font: the Windows family name (name ID 1),
+ * preferring the US English one. A family name in another locale's language
+ * is not looked for, so with such a default locale the name may differ from
+ * {@link java.awt.Font#getFamily()}.</p>
+ *
+ * @author David Zaslavsky
+ */
+final class TrueTypeNames {
+    private static final int TRUETYPE = 0x00010000;
+    private static final int TRUE = 0x74727565;    // 'true'
+    private static final int NAME = 0x6e616d65;    // 'name'
+
+    private static final int PLATFORM_WINDOWS = 3;
+    private static final int WINDOWS_ENGLISH = 0x0409;
+    private static final int NAME_FAMILY = 1;
+
+    // no real name table comes close to this
+    private static final int MAX_NAME_TABLE = 1 << 20;
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private TrueTypeNames() {}
+
+    /**
+     * Returns the family name of the TrueType font in the given file.
+     * @return the family name, or {@code null} if the file is not a plain
+     *  TrueType font or has no Windows family name, in which case the font has to be
+     *  created to find out
+     * @throws IOException if the file cannot be read
+     */
+    static String readFamily(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int version = raf.readInt();
+            if (version != TRUETYPE && version != TRUE) {
+                return null;
+            }
+            int numTables = raf.readUnsignedShort();
+            raf.skipBytes(6);
+            byte[] directory = new byte[numTables * 16];
+            raf.readFully(directory);
+            ByteBuffer dir = ByteBuffer.wrap(directory);
+            for (int i = 0; i < numTables; i++) {
+                int tag = dir.getInt(i * 16);
+                if (tag != NAME) {
+                    continue;
+                }
+                long offset = dir.getInt(i * 16 + 8) & 0xffffffffL;
+                long length = dir.getInt(i * 16 + 12) & 0xffffffffL;
+                if (length > MAX_NAME_TABLE || offset + length > raf.length()) {
+                    return null;
+                }
+                byte[] table = new byte[(int)length];
+                raf.seek(offset);
+                raf.readFully(table);
+                return findFamily(ByteBuffer.wrap(table));
+            }
+            return null;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static String findFamily(ByteBuffer table) {
+        if (table.remaining() < 6) {
+            return null;
+        }
+        int count = table.getShort(2) & 0xffff;
+        int stringOffset = table.getShort(4) & 0xffff;
+        String family = null;
+        for (int i = 0; i < count; i++) {
+            int record = 6 + i * 12;
+            if (record + 12 > table.limit()) {
+                break;
+            }
+            int platform = table.getShort(record) & 0xffff;
+            int language = table.getShort(record + 4) & 0xffff;
+            int nameID = table.getShort(record + 6) & 0xffff;
+            int length = table.getShort(record + 8) & 0xffff;
+            int offset = stringOffset + (table.getShort(record + 10) & 0xffff);
+            if (nameID != NAME_FAMILY || offset + length > table.limit()) {
+                continue;
+            }
+            if (platform == PLATFORM_WINDOWS && (family == null || language == WINDOWS_ENGLISH)) {
+                family = new String(table.array(), offset, length, UTF_16BE);
+                if (language == WINDOWS_ENGLISH) {
+                    break;
+                }
+            }
+        }
+        return family;
+    }
+}
@@ -29,6 +29,7 @@ import re
 import socket
 import struct
 import unicodedata
+import zlib
 from collections import namedtuple
 from datetime import datetime, timedelta
 from threading import Event, RLock, Thread, Condition
@@ -163,6 +164,10 @@ class RenderRequest(namedtuple('RenderRequest', 'name size bold italic bgcolor f
                 struct.pack('>B', len(self.text.splitlines())) +
                 self.text.encode('utf-8') + b'\n')
 
+# The coverage of rendered text, one byte per pixel in rows from the top;
+# origin_x and baseline locate the start of the baseline within it
+CoverageMask = namedtuple('CoverageMask', 'width height origin_x baseline advance coverage')
+
 class FontRecord:
     def __init__(self, family):
         self.family = family
@@ -181,6 +186,15 @@ class TextwriterBackendInterface:
     RENDER_MODE = b'\x00'
     FONT_LIST_MODE = b'\x01'
     ADD_FONT_MODE = b'\x02'
+    TAGGED_RENDER_MODE = b'\x03'
+    BATCH_RENDER_MODE = b'\x04'
+    STREAM_RENDER_MODE = b'\x05'
+    STATS_MODE = b'\x06'
+    MASK_MODE = b'\x07'
+    PARAGRAPH_MODE = b'\x08'
+    ADD_FONT_ASYNC_MODE = b'\x09'
+    FONT_JOB_MODE = b'\x0a'
+    FONT_LIST_SINCE_MODE = b'\x0b'
     SUCCESS = b'\x00'
 
     def __init__(self, host='localhost', port=TEXTWRITER_PORT, timeout=1.0):
@@ -204,8 +218,27 @@ class TextwriterBackendInterface:
                     recv_buffer += self.socket.recv(4096)
             except socket.timeout:
                 raise BackendUnavailable()
+        return self._parse_font_list(recv_buffer.decode('utf-8'))
+
+    def get_font_list_since(self, version=0):
+        '''Return the backend's current font list version, whether the list is
+        complete, and a list of FontRecord objects. Unless the list is complete,
+        it holds only the fonts added since the given version, which should be
+        one returned by an earlier call.'''
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.FONT_LIST_SINCE_MODE + str(version).encode('utf-8') + b'\n')
+                recv_buffer = self.socket.recv(4096)
+                while recv_buffer.count(b'\n') < 3 or not recv_buffer.endswith(b'\n\n'):
+                    recv_buffer += self.socket.recv(4096)
+            except socket.timeout:
+                raise BackendUnavailable()
+        version, complete, listing = recv_buffer.decode('utf-8').split('\n', 2)
+        return int(version), complete == '1', self._parse_font_list(listing)
+
+    def _parse_font_list(self, listing):
         font_list = []
-        for line in recv_buffer.decode('utf-8').strip().splitlines():
+        for line in listing.strip().splitlines():
             if '=' in line:
                 key, value = line.split('=', 1)
                 setattr(font, key, value)
@@ -214,6 +247,22 @@ class TextwriterBackendInterface:
                 font_list.append(font)
         return font_list
 
+    def get_stats(self):
+        '''Return a dict of the backend's counters and stage latencies'''
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.STATS_MODE)
+                recv_buffer = self.socket.recv(4096)
+                while not recv_buffer.endswith(b'\n\n'):
+                    recv_buffer += self.socket.recv(4096)
+            except socket.timeout:
+                raise BackendUnavailable()
+        stats = {}
+        for line in recv_buffer.decode('utf-8').strip().splitlines():
+            key, value = line.split('=', 1)
+            stats[key] = int(value)
+        return stats
+
     def add_font(self, filename):
         '''Ask the Java backend to add a font from a file'''
         with self.socket_lock:
@@ -224,6 +273,45 @@ class TextwriterBackendInterface:
                 raise BackendUnavailable()
         return recv_buffer[0] == self.SUCCESS
 
+    def add_font_async(self, filename):
+        '''Ask the Java backend to add fonts from a file or directory in the
+        background, and return the job ID to pass to get_font_job'''
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.ADD_FONT_ASYNC_MODE + filename.encode('utf-8') + b'\n')
+                recv_buffer = self.socket.recv(4)
+                while 4 > len(recv_buffer):
+                    recv_buffer += self.socket.recv(4 - len(recv_buffer))
+            except socket.timeout:
+                raise BackendUnavailable()
+        return struct.unpack('>I', recv_buffer)[0]
+
+    def get_font_job(self, job_id):
+        '''Return a dict of the progress of a background font load, with the
+        list of errors under 'error', or None if there is no such job'''
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.FONT_JOB_MODE + str(job_id).encode('utf-8') + b'\n')
+                recv_buffer = self.socket.recv(4096)
+                while not recv_buffer.endswith(b'\n'):
+                    recv_buffer += self.socket.recv(4096)
+                while recv_buffer != b'\n' and not recv_buffer.endswith(b'\n\n'):
+                    recv_buffer += self.socket.recv(4096)
+            except socket.timeout:
+                raise BackendUnavailable()
+        if recv_buffer == b'\n':
+            return None
+        job = {'error': []}
+        for line in recv_buffer.decode('utf-8').strip().splitlines():
+            key, value = line.split('=', 1)
+            if key == 'error':
+                job['error'].append(value)
+            elif key in ('path', 'state'):
+                job[key] = value
+            else:
+                job[key] = int(value)
+        return job
+
     def get_image(self, request):
         '''Get an image from the Java backend given a RenderRequest'''
         with self.socket_lock:
@@ -240,6 +328,135 @@ class TextwriterBackendInterface:
                 raise BackendUnavailable()
         return recv_buffer
 
+    def get_paragraph_image(self, request, max_width=0, alignment=0, line_spacing=100):
+        '''Get an image of a block of text from the Java backend given a
+        RenderRequest. Paragraphs are wrapped to max_width pixels unless it is
+        0, and aligned to the left (0), center (1) or right (2). line_spacing
+        is the distance between baselines as a percentage of the line height.'''
+        lines = request.text.splitlines()
+        header = RenderRequest(request.name, request.size, request.bold, request.italic,
+                               request.bgcolor, request.fgcolor, '').to_bytes()
+        # drop the line count and (empty) text of the single-request layout
+        header = header[:-2]
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.PARAGRAPH_MODE + header +
+                                    str(int(max_width)).encode('utf-8') + b'\n' +
+                                    struct.pack('>B', int(alignment)) +
+                                    str(int(line_spacing)).encode('utf-8') + b'\n' +
+                                    struct.pack('>B', len(lines)) +
+                                    b''.join(l.encode('utf-8') + b'\n' for l in lines))
+                recv_buffer = self.socket.recv(4096)
+                while 4 > len(recv_buffer):
+                    recv_buffer += self.socket.recv(4096)
+                size = struct.unpack('>I', recv_buffer[:4])[0]
+                recv_buffer = recv_buffer[4:]
+                while size > len(recv_buffer):
+                    recv_buffer += self.socket.recv(4096)
+            except socket.timeout:
+                raise BackendUnavailable()
+        return recv_buffer
+
+    def get_mask(self, name, size, bold, italic, text, deflate=True):
+        '''Get the coverage mask of some text from the Java backend, to be
+        colorized by the caller. The mask is compressed in transit if deflate
+        is true.'''
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.MASK_MODE + name.encode('utf-8') + b'\n' +
+                                    struct.pack('>B???', int(size), bool(bold), bool(italic), bool(deflate)) +
+                                    struct.pack('>B', len(text.splitlines())) +
+                                    text.encode('utf-8') + b'\n')
+                recv_buffer = self.socket.recv(4096)
+                while 25 > len(recv_buffer):
+                    recv_buffer += self.socket.recv(4096)
+                width, height, origin_x, baseline, advance, encoding, length = struct.unpack('>IIiiiBI', recv_buffer[:25])
+                recv_buffer = recv_buffer[25:]
+                while length > len(recv_buffer):
+                    recv_buffer += self.socket.recv(4096)
+            except socket.timeout:
+                raise BackendUnavailable()
+        coverage = recv_buffer[:length]
+        if encoding == 1:
+            coverage = zlib.decompress(coverage)
+        return CoverageMask(width, height, origin_x, baseline, advance, coverage)
+
+    def iter_image_chunks(self, request):
+        '''Get an image from the Java backend given a RenderRequest, yielding
+        pieces of the PNG content as they arrive. The socket stays locked
+        until the generator is exhausted.'''
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.STREAM_RENDER_MODE + request.to_bytes())
+                recv_buffer = b''
+                while True:
+                    while 4 > len(recv_buffer):
+                        recv_buffer += self.socket.recv(4096)
+                    size = struct.unpack('>I', recv_buffer[:4])[0]
+                    recv_buffer = recv_buffer[4:]
+                    if size == 0:
+                        break
+                    while size > len(recv_buffer):
+                        recv_buffer += self.socket.recv(4096)
+                    yield recv_buffer[:size]
+                    recv_buffer = recv_buffer[size:]
+            except socket.timeout:
+                raise BackendUnavailable()
+
+    def get_images(self, requests):
+        '''Get images for several RenderRequests at once. The backend renders
+        them concurrently and may answer in any order; the images are returned
+        in the order of the requests.'''
+        images = [None] * len(requests)
+        with self.socket_lock:
+            try:
+                self.socket.sendall(b''.join(
+                    self.TAGGED_RENDER_MODE + str(i).encode('utf-8') + b'\n' + r.to_bytes()
+                    for i, r in enumerate(requests)))
+                recv_buffer = b''
+                for _ in requests:
+                    while 8 > len(recv_buffer):
+                        recv_buffer += self.socket.recv(4096)
+                    tag, size = struct.unpack('>II', recv_buffer[:8])
+                    recv_buffer = recv_buffer[8:]
+                    while size > len(recv_buffer):
+                        recv_buffer += self.socket.recv(4096)
+                    images[tag] = recv_buffer[:size]
+                    recv_buffer = recv_buffer[size:]
+            except socket.timeout:
+                raise BackendUnavailable()
+        return images
+
+    def get_batch_images(self, name, size, bold, italic, bgcolor, fgcolor, texts):
+        '''Get one image for each of several single-line strings in the same
+        font and colors, rendered by the backend in one round trip'''
+        header = RenderRequest(name, size, bold, italic, bgcolor, fgcolor, '').to_bytes()
+        # drop the line count and (empty) text of the single-request layout
+        header = header[:-2]
+        with self.socket_lock:
+            try:
+                self.socket.sendall(self.BATCH_RENDER_MODE + header + b'\x00' +
+                                    str(len(texts)).encode('utf-8') + b'\n' +
+                                    b''.join(t.encode('utf-8') + b'\n' for t in texts))
+                recv_buffer = b''
+                while 4 > len(recv_buffer):
+                    recv_buffer += self.socket.recv(4096)
+                count = struct.unpack('>I', recv_buffer[:4])[0]
+                recv_buffer = recv_buffer[4:]
+                images = []
+                for _ in range(count):
+                    while 4 > len(recv_buffer):
+                        recv_buffer += self.socket.recv(4096)
+                    size = struct.unpack('>I', recv_buffer[:4])[0]
+                    recv_buffer = recv_buffer[4:]
+                    while size > len(recv_buffer):
+                        recv_buffer += self.socket.recv(4096)
+                    images.append(recv_buffer[:size])
+                    recv_buffer = recv_buffer[size:]
+            except socket.timeout:
+                raise BackendUnavailable()
+        return images
+
 class ImageCache:
     '''A cache for images obtained from the backend. The cache stores each image
     under a key unique to the RenderRequest used to create it.